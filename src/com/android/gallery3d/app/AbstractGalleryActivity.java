@@ -55,13 +55,16 @@ import com.android.gallery3d.data.MediaItem;
 import com.android.gallery3d.filtershow.cache.ImageLoader;
 import com.android.gallery3d.ui.GLRoot;
 import com.android.gallery3d.ui.GLRootView;
+import com.android.gallery3d.util.JobMetrics;
 import com.android.gallery3d.util.Log;
 import com.android.gallery3d.util.MediaSetUtils;
 import com.android.gallery3d.util.PanoramaViewHelper;
 import com.android.gallery3d.util.ThreadPool;
 import com.android.gallery3d.data.GalleryBitmapPool;
 
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 public class AbstractGalleryActivity extends AppCompatActivity implements GalleryContext {
@@ -122,6 +125,25 @@ public class AbstractGalleryActivity extends AppCompatActivity implements Galler
         return ((GalleryApp) getApplication()).getThreadPool();
     }
 
+    // "adb shell dumpsys activity <activity> jobmetrics on|off" starts or
+    // stops collecting the JobMetrics of the thread pool, and a plain dump
+    // prints them.
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer,
+            String[] args) {
+        super.dump(prefix, fd, writer, args);
+        ThreadPool threadPool = getThreadPool();
+        if (args != null && args.length == 2 && "jobmetrics".equals(args[0])) {
+            threadPool.setMetricsEnabled("on".equals(args[1]));
+        }
+        JobMetrics metrics = threadPool.getMetrics();
+        if (metrics != null) {
+            writer.print(prefix);
+            writer.println("Job metrics:");
+            metrics.dump(writer);
+        }
+    }
+
     public synchronized StateManager getStateManager() {
         if (mStateManager == null) {
             mStateManager = new StateManager(this);
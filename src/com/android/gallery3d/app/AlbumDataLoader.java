@@ -23,6 +23,7 @@ import android.text.TextUtils;
 import android.view.View;
 
 import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.ChangeSet;
 import com.android.gallery3d.data.ContentListener;
 import com.android.gallery3d.data.MediaItem;
 import com.android.gallery3d.data.MediaObject;
@@ -56,6 +57,10 @@ public class AlbumDataLoader {
     public static interface DataListener {
         public void onContentChanged(int index);
         public void onSizeChanged(int size);
+        // The items have moved as described by the changes: the item at
+        // index i is now the one which was at changes.getOldIndex(i), or a
+        // new one which is not loaded yet (see onContentChanged).
+        public void onItemsMoved(ChangeSet changes);
     }
 
     private int mActiveStart = 0;
@@ -290,8 +295,16 @@ public class AlbumDataLoader {
             for (int i = mContentStart, n = mContentEnd; i < n; ++i) {
                 int index = i % DATA_CACHE_SIZE;
                 if (setVersion[index] != version) {
+                    // Only load the run of outdated slots, which is short
+                    // after the changes are patched by ApplyChanges.
+                    int end = i + 1;
+                    int max = Math.min(i + MAX_LOAD_COUNT, n);
+                    while (end < max
+                            && setVersion[end % DATA_CACHE_SIZE] != version) {
+                        ++end;
+                    }
                     info.reloadStart = i;
-                    info.reloadCount = Math.min(MAX_LOAD_COUNT, n - i);
+                    info.reloadCount = end - i;
                     return info;
                 }
             }
@@ -348,6 +361,69 @@ public class AlbumDataLoader {
         }
     }
 
+    // Moves the loaded items to their new index instead of loading them
+    // again. Only the slots of the new items, and of the items which don't
+    // match the new list (e.g. loaded after the changes), are outdated.
+    private class ApplyChanges implements Callable<Void> {
+        private final ChangeSet mChanges;
+        private final long mFromVersion;
+        private final long mVersion;
+
+        public ApplyChanges(ChangeSet changes, long fromVersion, long version) {
+            mChanges = changes;
+            mFromVersion = fromVersion;
+            mVersion = version;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            // The window may have moved since the changes were requested.
+            if (mSourceVersion != mFromVersion) return null;
+            ChangeSet changes = mChanges;
+            int oldStart = mContentStart;
+            int oldEnd = mContentEnd;
+            int n = oldEnd - oldStart;
+            MediaItem[] data = new MediaItem[n];
+            long[] itemVersion = new long[n];
+            long[] setVersion = new long[n];
+            for (int i = 0; i < n; ++i) {
+                int index = (oldStart + i) % DATA_CACHE_SIZE;
+                data[i] = mData[index];
+                itemVersion[i] = mItemVersion[index];
+                setVersion[i] = mSetVersion[index];
+                clearSlot(index);
+            }
+
+            mSourceVersion = mVersion;
+            int size = changes.getNewSize();
+            if (mSize != size) {
+                mSize = size;
+                if (mDataListener != null) mDataListener.onSizeChanged(mSize);
+                if (mContentEnd > mSize) mContentEnd = mSize;
+                if (mActiveEnd > mSize) mActiveEnd = mSize;
+            }
+
+            for (int i = mContentStart, end = mContentEnd; i < end; ++i) {
+                int old = changes.getOldIndex(i) - oldStart;
+                if (old < 0 || old >= n || setVersion[old] != mFromVersion) {
+                    continue;
+                }
+                MediaItem item = data[old];
+                Path path = changes.getPath(i);
+                if (item == null || (path != null && item.getPath() != path)) {
+                    continue;
+                }
+                int index = i % DATA_CACHE_SIZE;
+                mData[index] = item;
+                mItemVersion[index] = itemVersion[old];
+                mSetVersion[index] = mVersion;
+            }
+            mFailedVersion = MediaObject.INVALID_DATA_VERSION;
+            if (mDataListener != null) mDataListener.onItemsMoved(changes);
+            return null;
+        }
+    }
+
     /*
      * The thread model of ReloadTask
      *      *
@@ -403,6 +479,12 @@ public class AlbumDataLoader {
                 updateComplete = info == null;
                 if (updateComplete) continue;
                 if (info.version != version) {
+                    ChangeSet changes = mSource.getChangesSince(info.version);
+                    if (changes != null) {
+                        executeAndWait(new ApplyChanges(changes, info.version, version));
+                        // Go on with loading the outdated slots.
+                        continue;
+                    }
                     info.size = mSource.getMediaItemCount();
                     info.version = version;
                 }
@@ -38,6 +38,8 @@ public class GalleryAppImpl extends Application implements GalleryApp {
 
     private static final String DOWNLOAD_FOLDER = "download";
     private static final long DOWNLOAD_CAPACITY = 64 * 1024 * 1024; // 64M
+    // Threads running the MODE_DISK jobs, next to the CPU pool.
+    private static final int DISK_POOL_SIZE = 2;
     public static final String DEFAULT_CHANNEL_ID = "default";
 
     private ImageCacheService mImageCacheService;
@@ -76,7 +78,8 @@ public class GalleryAppImpl extends Application implements GalleryApp {
         // This method may block on file I/O so a dedicated lock is needed here.
         synchronized (mLock) {
             if (mImageCacheService == null) {
-                mImageCacheService = new ImageCacheService(getAndroidContext());
+                mImageCacheService = new ImageCacheService(
+                        getAndroidContext(), getThreadPool());
             }
             return mImageCacheService;
         }
@@ -86,6 +89,7 @@ public class GalleryAppImpl extends Application implements GalleryApp {
     public synchronized ThreadPool getThreadPool() {
         if (mThreadPool == null) {
             mThreadPool = new ThreadPool();
+            mThreadPool.enableDiskPool(DISK_POOL_SIZE);
         }
         return mThreadPool;
     }
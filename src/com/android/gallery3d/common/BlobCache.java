@@ -25,16 +25,17 @@
 // 0.5, it does the same thing like when the size limit is reached.
 //
 // The index file format: (all numbers are stored in little-endian)
-// [0]  Magic number: 0xB3273030
+// [0]  Magic number: 0xB3273031
 // [4]  MaxEntries: Max number of hash entries per region.
 // [8]  MaxBytes: Max number of data bytes per region (including header).
 // [12] ActiveRegion: The active growing region: 0 or 1.
 // [16] ActiveEntries: The number of hash entries used in the active region.
 // [20] ActiveBytes: The number of data bytes used in the active region.
 // [24] Version number.
-// [28] Checksum of [0..28).
-// [32] Hash entries for region 0. The size is X = (12 * MaxEntries bytes).
-// [32 + X] Hash entries for region 1. The size is also X.
+// [28] InactiveBytes: The number of data bytes used in the inactive region.
+// [32] Checksum of [0..32).
+// [36] Hash entries for region 0. The size is X = (12 * MaxEntries bytes).
+// [36 + X] Hash entries for region 1. The size is also X.
 //
 // Each hash entry is 12 bytes: 8 bytes key and 4 bytes offset into the data
 // file. The offset is 0 when the slot is free. Note that 0 is a valid value
@@ -51,13 +52,37 @@
 // [16] Length of this blob (not including header)
 // [20] Blob
 //
+// Blobs are always appended to the data file before the index entry pointing
+// to them is written, and each blob header records the key, offset, length
+// and checksum of the blob. So the data files can be replayed like a log: if
+// the index is found damaged when the cache is opened in recovery mode, the
+// index is rebuilt from the intact blobs in the data files instead of
+// clearing the whole cache. A cleared entry keeps its header (only the key is
+// zeroed), so replaying can step over it.
+//
+// When background compaction is enabled, a blob found in the inactive region
+// is not copied to the active region by the lookup itself. Its key is queued
+// instead, and compact() copies the queued blobs forward later on a
+// background thread. compact() also flips the regions ahead of time when the
+// active region is almost full. Queued blobs which are still in the region
+// discarded by a flip are carried over into the new active region, so
+// recently used entries survive the flip.
+//
 // Below are the interface for BlobCache. The instance of this class does not
 // support concurrent use by multiple threads.
 //
 // public BlobCache(String path, int maxEntries, int maxBytes, boolean reset) throws IOException;
+// public BlobCache(String path, int maxEntries, int maxBytes, boolean reset, int version, boolean recover) throws IOException;
 // public void insert(long key, byte[] data) throws IOException;
 // public byte[] lookup(long key) throws IOException;
 // public void lookup(LookupRequest req) throws IOException;
+// public int lookup(LookupRequest[] reqs, boolean[] found) throws IOException;
+// public ByteBuffer lookupMapped(long key) throws IOException;
+// public int getGeneration();
+// public void setBackgroundCompaction(boolean enabled);
+// public boolean needsCompaction();
+// public int compact(int maxEntries) throws IOException;
+// public Stats getStats();
 // public void close();
 // public void syncIndex();
 // public void syncAll();
@@ -71,16 +96,18 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.zip.Adler32;
 
 public class BlobCache implements Closeable {
     private static final String TAG = "BlobCache";
 
-    private static final int MAGIC_INDEX_FILE = 0xB3273030;
+    private static final int MAGIC_INDEX_FILE = 0xB3273031;
     private static final int MAGIC_DATA_FILE = 0xBD248510;
 
     // index header offset
@@ -91,8 +118,9 @@ public class BlobCache implements Closeable {
     private static final int IH_ACTIVE_ENTRIES = 16;
     private static final int IH_ACTIVE_BYTES = 20;
     private static final int IH_VERSION = 24;
-    private static final int IH_CHECKSUM = 28;
-    private static final int INDEX_HEADER_SIZE = 32;
+    private static final int IH_INACTIVE_BYTES = 28;
+    private static final int IH_CHECKSUM = 32;
+    private static final int INDEX_HEADER_SIZE = 36;
 
     private static final int DATA_HEADER_SIZE = 4;
 
@@ -103,11 +131,74 @@ public class BlobCache implements Closeable {
     private static final int BH_LENGTH = 16;
     private static final int BLOB_HEADER_SIZE = 20;
 
+    // compact() flips the regions when the active region is this full.
+    private static final int COMPACT_THRESHOLD_PERCENT = 90;
+    // Max number of keys queued for compact(). If the queue is full, lookups
+    // copy blobs forward themselves.
+    private static final int MAX_PENDING_COPIES = 256;
+    // The data files are mapped in chunks of this size, so a growing file
+    // only needs its last chunk mapped again.
+    private static final int DATA_CHUNK_SIZE = 1024 * 1024;
+    // At most this fraction of a region is carried over by a flip.
+    private static final int MAX_CARRY_OVER_DIVISOR = 4;
+
+    public static final int LATENCY_BUCKETS = 16;
+
+    // Counters of a cache since it was opened.
+    public static class Stats {
+        public long hits;
+        public long misses;
+        public long bytesWritten;
+        public long flips;
+        // Blobs copied forward by compact() or carried over by a flip.
+        public long compactedEntries;
+        // latencyHistogram[i] is the number of lookups which took less than
+        // 2^(i+1) microseconds (and at least 2^i for i > 0). The last bucket
+        // also counts all the slower lookups.
+        public final long[] latencyHistogram = new long[LATENCY_BUCKETS];
+
+        public void add(Stats other) {
+            hits += other.hits;
+            misses += other.misses;
+            bytesWritten += other.bytesWritten;
+            flips += other.flips;
+            compactedEntries += other.compactedEntries;
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                latencyHistogram[i] += other.latencyHistogram[i];
+            }
+        }
+
+        public float getHitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (float) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("hits=").append(hits)
+                    .append(" misses=").append(misses)
+                    .append(" bytesWritten=").append(bytesWritten)
+                    .append(" flips=").append(flips)
+                    .append(" compacted=").append(compactedEntries)
+                    .append(" latency(us)=[");
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                if (i > 0) sb.append(' ');
+                sb.append("<").append(1 << (i + 1)).append(':')
+                        .append(latencyHistogram[i]);
+            }
+            return sb.append(']').toString();
+        }
+    }
+
     private RandomAccessFile mIndexFile;
     private RandomAccessFile mDataFile0;
     private RandomAccessFile mDataFile1;
     private FileChannel mIndexChannel;
     private MappedByteBuffer mIndexBuffer;
+    // Read-only mappings of the chunks of the data files, created on demand
+    // by lookupMapped(). Indexed by region, then by chunk.
+    private MappedByteBuffer[][] mDataChunks = new MappedByteBuffer[2][];
 
     private int mMaxEntries;
     private int mMaxBytes;
@@ -115,6 +206,8 @@ public class BlobCache implements Closeable {
     private int mActiveEntries;
     private int mActiveBytes;
     private int mVersion;
+    // Incremented by each region flip, see getGeneration().
+    private int mGeneration;
 
     private RandomAccessFile mActiveDataFile;
     private RandomAccessFile mInactiveDataFile;
@@ -124,6 +217,12 @@ public class BlobCache implements Closeable {
     private byte[] mBlobHeader = new byte[BLOB_HEADER_SIZE];
     private Adler32 mAdler32 = new Adler32();
 
+    private final Stats mStats = new Stats();
+    private boolean mBackgroundCompaction;
+    // Keys of blobs found in the inactive region and waiting for compact().
+    private final long[] mPendingCopies = new long[MAX_PENDING_COPIES];
+    private int mPendingCopyCount;
+
     // Creates the cache. Three files will be created:
     // path + ".idx", path + ".0", and path + ".1"
     // The ".0" file and the ".1" file each stores data for a region. Each of
@@ -137,6 +236,14 @@ public class BlobCache implements Closeable {
 
     public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
             int version) throws IOException {
+        this(path, maxEntries, maxBytes, reset, version, false);
+    }
+
+    // If the "recover" parameter is true and the index cannot be loaded (e.g.
+    // the device died while it was being written), the index is rebuilt from
+    // the data files instead of clearing the cache. See salvageIndex().
+    public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
+            int version, boolean recover) throws IOException {
         mIndexFile = new RandomAccessFile(path + ".idx", "rw");
         mDataFile0 = new RandomAccessFile(path + ".0", "rw");
         mDataFile1 = new RandomAccessFile(path + ".1", "rw");
@@ -146,6 +253,10 @@ public class BlobCache implements Closeable {
             return;
         }
 
+        if (!reset && recover && salvageIndex(maxEntries, maxBytes)) {
+            return;
+        }
+
         resetCache(maxEntries, maxBytes);
 
         if (!loadIndex()) {
@@ -179,6 +290,8 @@ public class BlobCache implements Closeable {
     }
 
     private void closeAll() {
+        mDataChunks[0] = null;
+        mDataChunks[1] = null;
         closeSilently(mIndexChannel);
         closeSilently(mIndexFile);
         closeSilently(mDataFile0);
@@ -273,7 +386,7 @@ public class BlobCache implements Closeable {
                     0, mIndexFile.length());
             mIndexBuffer.order(ByteOrder.LITTLE_ENDIAN);
 
-            setActiveVariables();
+            setActiveVariables(true);
             return true;
         } catch (IOException ex) {
             Log.e(TAG, "loadIndex failed.", ex);
@@ -281,10 +394,163 @@ public class BlobCache implements Closeable {
         }
     }
 
-    private void setActiveVariables() throws IOException {
+    // The blobs found in a data file by scanRegion().
+    private static class SalvagedRegion {
+        final long[] keys;
+        final int[] offsets;
+        int count;
+        // The end of the last intact blob, or 0 if the file has no magic.
+        int end;
+
+        SalvagedRegion(int capacity) {
+            keys = new long[capacity];
+            offsets = new int[capacity];
+        }
+    }
+
+    // Rebuilds the index from the data files: every blob from the start of
+    // a data file up to the first torn or corrupted one is put back into the
+    // index. The old index header is only trusted for the version, the
+    // active region and the sizes of the regions: a data file is not
+    // truncated by a flip while it is mapped, so either file may hold stale
+    // blobs past the size of its region. Returns false if the cache cannot
+    // be salvaged and should be reset instead.
+    private boolean salvageIndex(int maxEntries, int maxBytes) {
+        try {
+            byte[] buf = mIndexHeader;
+            mIndexFile.seek(0);
+            if (mIndexFile.read(buf) != INDEX_HEADER_SIZE
+                    || readInt(buf, IH_MAGIC) != MAGIC_INDEX_FILE
+                    || readInt(buf, IH_VERSION) != mVersion) {
+                // The blobs may be in another format.
+                return false;
+            }
+
+            // Keep the region counts below the load factor which triggers
+            // a flip, so the hash tables always have free slots.
+            int capacity = maxEntries / 2;
+            int activeRegion = readInt(buf, IH_ACTIVE_REGION);
+            int activeBytes = readRegionBytes(buf, IH_ACTIVE_BYTES, maxBytes);
+            int inactiveBytes = readRegionBytes(buf, IH_INACTIVE_BYTES, maxBytes);
+            SalvagedRegion region0 = scanRegion(mDataFile0,
+                    (activeRegion == 0) ? activeBytes : inactiveBytes, capacity);
+            SalvagedRegion region1 = scanRegion(mDataFile1,
+                    (activeRegion == 1) ? activeBytes : inactiveBytes, capacity);
+            if (activeRegion != 0 && activeRegion != 1) {
+                // The inactive region was filled up before the last flip.
+                activeRegion = (region0.end <= region1.end) ? 0 : 1;
+            }
+            SalvagedRegion active = (activeRegion == 0) ? region0 : region1;
+            SalvagedRegion inactive = (activeRegion == 0) ? region1 : region0;
+            if (region0.end == 0) writeDataMagic(mDataFile0, region0);
+            if (region1.end == 0) writeDataMagic(mDataFile1, region1);
+
+            mIndexFile.setLength(0);
+            mIndexFile.setLength(INDEX_HEADER_SIZE + maxEntries * 12 * 2);
+            mIndexFile.seek(0);
+            writeInt(buf, IH_MAGIC, MAGIC_INDEX_FILE);
+            writeInt(buf, IH_MAX_ENTRIES, maxEntries);
+            writeInt(buf, IH_MAX_BYTES, maxBytes);
+            writeInt(buf, IH_ACTIVE_REGION, activeRegion);
+            writeInt(buf, IH_ACTIVE_ENTRIES, 0);
+            writeInt(buf, IH_ACTIVE_BYTES, active.end);
+            writeInt(buf, IH_VERSION, mVersion);
+            writeInt(buf, IH_INACTIVE_BYTES, inactive.end);
+            writeInt(buf, IH_CHECKSUM, checkSum(buf, 0, IH_CHECKSUM));
+            mIndexFile.write(buf);
+
+            // This truncates the torn tail of the active data file.
+            if (!loadIndex()) return false;
+
+            restoreEntries(inactive, mInactiveHashStart);
+            mActiveEntries = restoreEntries(active, mActiveHashStart);
+            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            updateIndexHeader();
+            syncIndex();
+            Log.w(TAG, "index salvaged: " + mActiveEntries + " + "
+                    + inactive.count + " blobs");
+            return true;
+        } catch (Throwable t) {
+            Log.e(TAG, "salvageIndex failed.", t);
+            return false;
+        }
+    }
+
+    // Reads a region size from the old index header. A size which does not
+    // fit in the region is not trusted, and the whole region is scanned.
+    private static int readRegionBytes(byte[] buf, int offset, int maxBytes) {
+        int bytes = readInt(buf, offset);
+        return (bytes < DATA_HEADER_SIZE || bytes > maxBytes) ? maxBytes : bytes;
+    }
+
+    // Reads the blobs in the data file in order, stopping at the first one
+    // which is not intact or at maxBytes. At most "capacity" blobs are
+    // recorded.
+    private SalvagedRegion scanRegion(RandomAccessFile file, int maxBytes,
+            int capacity) throws IOException {
+        SalvagedRegion region = new SalvagedRegion(capacity);
+        byte[] header = mBlobHeader;
+        file.seek(0);
+        if (file.read(header, 0, DATA_HEADER_SIZE) != DATA_HEADER_SIZE
+                || readInt(header, 0) != MAGIC_DATA_FILE) {
+            return region;
+        }
+
+        long end = Math.min(file.length(), maxBytes);
+        byte[] blob = new byte[0];
+        int offset = DATA_HEADER_SIZE;
+        region.end = offset;
+        while (offset + BLOB_HEADER_SIZE <= end) {
+            if (file.read(header) != BLOB_HEADER_SIZE) break;
+            if (readInt(header, BH_OFFSET) != offset) break;
+            int length = readInt(header, BH_LENGTH);
+            if (length < 0 || length > end - offset - BLOB_HEADER_SIZE) break;
+            if (blob.length < length) blob = new byte[length];
+            if (file.read(blob, 0, length) != length) break;
+            if (checkSum(blob, 0, length) != readInt(header, BH_CHECKSUM)) break;
+
+            long key = readLong(header, BH_KEY);
+            if (key != 0 && region.count < capacity) {
+                region.keys[region.count] = key;
+                region.offsets[region.count] = offset;
+                region.count++;
+            }
+            offset += BLOB_HEADER_SIZE + length;
+            region.end = offset;
+        }
+        return region;
+    }
+
+    private void writeDataMagic(RandomAccessFile file, SalvagedRegion region)
+            throws IOException {
+        byte[] buf = new byte[DATA_HEADER_SIZE];
+        writeInt(buf, 0, MAGIC_DATA_FILE);
+        file.setLength(0);
+        file.seek(0);
+        file.write(buf);
+        region.count = 0;
+        region.end = DATA_HEADER_SIZE;
+    }
+
+    // Puts the salvaged blobs into the hash region. A later blob with the
+    // same key replaces an earlier one. Returns the number of distinct keys.
+    private int restoreEntries(SalvagedRegion region, int hashStart) {
+        int entries = 0;
+        for (int i = 0; i < region.count; i++) {
+            long key = region.keys[i];
+            if (!lookupInternal(key, hashStart)) ++entries;
+            mIndexBuffer.putLong(mSlotOffset, key);
+            mIndexBuffer.putInt(mSlotOffset + 8, region.offsets[i]);
+        }
+        return entries;
+    }
+
+    // If truncate is false, the stale data after mActiveBytes is left in the
+    // active file and is overwritten by later inserts.
+    private void setActiveVariables(boolean truncate) throws IOException {
         mActiveDataFile = (mActiveRegion == 0) ? mDataFile0 : mDataFile1;
         mInactiveDataFile = (mActiveRegion == 1) ? mDataFile0 : mDataFile1;
-        mActiveDataFile.setLength(mActiveBytes);
+        if (truncate) mActiveDataFile.setLength(mActiveBytes);
         mActiveDataFile.seek(mActiveBytes);
 
         mActiveHashStart = INDEX_HEADER_SIZE;
@@ -309,6 +575,7 @@ public class BlobCache implements Closeable {
         writeInt(buf, IH_ACTIVE_ENTRIES, 0);
         writeInt(buf, IH_ACTIVE_BYTES, DATA_HEADER_SIZE);
         writeInt(buf, IH_VERSION, mVersion);
+        writeInt(buf, IH_INACTIVE_BYTES, DATA_HEADER_SIZE);
         writeInt(buf, IH_CHECKSUM, checkSum(buf, 0, IH_CHECKSUM));
         mIndexFile.write(buf);
         // This is only needed if setLength does not zero the extended part.
@@ -325,6 +592,12 @@ public class BlobCache implements Closeable {
 
     // Flip the active region and the inactive region.
     private void flipRegion() throws IOException {
+        // The inactive region is about to be discarded. Read the blobs still
+        // waiting to be copied forward from it, and insert them again after
+        // the flip.
+        ArrayList<LookupRequest> carried = collectPendingCopies();
+
+        writeInt(mIndexHeader, IH_INACTIVE_BYTES, mActiveBytes);
         mActiveRegion = 1 - mActiveRegion;
         mActiveEntries = 0;
         mActiveBytes = DATA_HEADER_SIZE;
@@ -334,11 +607,51 @@ public class BlobCache implements Closeable {
         writeInt(mIndexHeader, IH_ACTIVE_BYTES, mActiveBytes);
         updateIndexHeader();
 
-        setActiveVariables();
+        // Buffers returned by lookupMapped() may still refer to the new
+        // active file. Reading a mapping past the end of a truncated file
+        // crashes the process, so keep the file length in that case.
+        setActiveVariables(mDataChunks[mActiveRegion] == null);
         clearHash(mActiveHashStart);
+        mStats.flips++;
+        mGeneration++;
+
+        for (LookupRequest req : carried) {
+            if (lookupInternal(req.key, mActiveHashStart)) continue;
+            insertInternal(req.key, req.buffer, req.length);
+            mActiveEntries++;
+            mStats.compactedEntries++;
+        }
+        if (!carried.isEmpty()) {
+            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            updateIndexHeader();
+        }
         syncIndex();
     }
 
+    // Reads the blobs of the pending copies which are in the inactive region
+    // and clears the queue. The total size is limited to a fraction of the
+    // region.
+    private ArrayList<LookupRequest> collectPendingCopies() {
+        ArrayList<LookupRequest> result = new ArrayList<LookupRequest>();
+        int budget = mMaxBytes / MAX_CARRY_OVER_DIVISOR;
+        for (int i = 0; i < mPendingCopyCount; i++) {
+            long key = mPendingCopies[i];
+            if (!lookupInternal(key, mInactiveHashStart)) continue;
+            LookupRequest req = new LookupRequest();
+            req.key = key;
+            try {
+                if (!getBlob(mInactiveDataFile, mFileOffset, req)) continue;
+            } catch (IOException e) {
+                continue;
+            }
+            budget -= BLOB_HEADER_SIZE + req.length;
+            if (budget < 0) break;
+            result.add(req);
+        }
+        mPendingCopyCount = 0;
+        return result;
+    }
+
     // Sync mIndexHeader to the index file.
     private void updateIndexHeader() {
         writeInt(mIndexHeader, IH_CHECKSUM,
@@ -380,14 +693,106 @@ public class BlobCache implements Closeable {
         updateIndexHeader();
     }
 
+    // Enables or disables background compaction. See the comment at the top.
+    public void setBackgroundCompaction(boolean enabled) {
+        mBackgroundCompaction = enabled;
+    }
+
+    // Returns true if compact() has work to do.
+    public boolean needsCompaction() {
+        return mPendingCopyCount > 0 || isAlmostFull();
+    }
+
+    private boolean isAlmostFull() {
+        return (long) mActiveBytes * 100
+                    >= (long) mMaxBytes * COMPACT_THRESHOLD_PERCENT
+                || (long) mActiveEntries * 2 * 100
+                    >= (long) mMaxEntries * COMPACT_THRESHOLD_PERCENT;
+    }
+
+    // Copies at most maxEntries queued blobs from the inactive region to the
+    // active region, then flips the regions if the active region is almost
+    // full. Returns the number of blobs copied forward. Does the work
+    // incrementally, so callers sharing the cache are not blocked for long.
+    public int compact(int maxEntries) throws IOException {
+        int copied = 0;
+        LookupRequest req = new LookupRequest();
+        while (mPendingCopyCount > 0 && copied < maxEntries) {
+            long key = mPendingCopies[--mPendingCopyCount];
+            if (lookupInternal(key, mActiveHashStart)) continue;
+            int insertOffset = mSlotOffset;
+            if (!lookupInternal(key, mInactiveHashStart)) continue;
+            req.key = key;
+            if (!getBlob(mInactiveDataFile, mFileOffset, req)) continue;
+            if (!hasRoomFor(req.length)) {
+                // Put it back, the flip below will carry it over.
+                mPendingCopies[mPendingCopyCount++] = key;
+                break;
+            }
+            mSlotOffset = insertOffset;
+            insertInternal(key, req.buffer, req.length);
+            mActiveEntries++;
+            mStats.compactedEntries++;
+            ++copied;
+        }
+        if (copied > 0) {
+            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            updateIndexHeader();
+        }
+        if (isAlmostFull()) flipRegion();
+        return copied;
+    }
+
+    private boolean hasRoomFor(int length) {
+        return mActiveBytes + BLOB_HEADER_SIZE + length <= mMaxBytes
+                && mActiveEntries * 2 < mMaxEntries;
+    }
+
+    // Queues the key for compact(). Returns false if the queue is full, in
+    // which case the caller should copy the blob forward itself.
+    private boolean queuePendingCopy(long key) {
+        if (!mBackgroundCompaction) return false;
+        for (int i = 0; i < mPendingCopyCount; i++) {
+            if (mPendingCopies[i] == key) return true;
+        }
+        if (mPendingCopyCount == MAX_PENDING_COPIES) return false;
+        mPendingCopies[mPendingCopyCount++] = key;
+        return true;
+    }
+
+    // Returns a copy of the counters.
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.add(mStats);
+        return stats;
+    }
+
+    private void recordLookup(boolean hit, long startNanos) {
+        if (hit) {
+            mStats.hits++;
+        } else {
+            mStats.misses++;
+        }
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        int bucket = 0;
+        while (micros > 1 && bucket < LATENCY_BUCKETS - 1) {
+            micros >>= 1;
+            ++bucket;
+        }
+        mStats.latencyHistogram[bucket]++;
+    }
+
     public void clearEntry(long key) throws IOException {
         if (!lookupInternal(key, mActiveHashStart)) {
             return; // Nothing to clear
         }
+        // Only zero the key, so the rest of the header can still be used to
+        // step over this blob when the index is salvaged.
         byte[] header = mBlobHeader;
-        Arrays.fill(header, (byte) 0);
-        mActiveDataFile.seek(mFileOffset);
-        mActiveDataFile.write(header);
+        Arrays.fill(header, 0, 8, (byte) 0);
+        mActiveDataFile.seek(mFileOffset + BH_KEY);
+        mActiveDataFile.write(header, 0, 8);
+        mActiveDataFile.seek(mActiveBytes);
     }
 
     // Appends the data to the active file. It also updates the hash entry.
@@ -403,6 +808,30 @@ public class BlobCache implements Closeable {
         writeInt(header, BH_LENGTH, length);
         mActiveDataFile.write(header);
         mActiveDataFile.write(data, 0, length);
+        mStats.bytesWritten += BLOB_HEADER_SIZE + length;
+
+        mIndexBuffer.putLong(mSlotOffset, key);
+        mIndexBuffer.putInt(mSlotOffset + 8, mActiveBytes);
+        mActiveBytes += BLOB_HEADER_SIZE + length;
+        writeInt(mIndexHeader, IH_ACTIVE_BYTES, mActiveBytes);
+    }
+
+    // Same as above, but the data comes from a buffer. The data is written
+    // with the file channel, so it is not copied into the Java heap.
+    private void insertInternal(long key, ByteBuffer data, int length)
+            throws IOException {
+        byte[] header = mBlobHeader;
+        int sum = checkSum(data.duplicate());
+        writeLong(header, BH_KEY, key);
+        writeInt(header, BH_CHECKSUM, sum);
+        writeInt(header, BH_OFFSET, mActiveBytes);
+        writeInt(header, BH_LENGTH, length);
+        mActiveDataFile.write(header);
+        FileChannel channel = mActiveDataFile.getChannel();
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+        mStats.bytesWritten += BLOB_HEADER_SIZE + length;
 
         mIndexBuffer.putLong(mSlotOffset, key);
         mIndexBuffer.putInt(mSlotOffset + 8, mActiveBytes);
@@ -440,6 +869,13 @@ public class BlobCache implements Closeable {
     // This method tries not to throw IOException even if the data file is
     // corrupted, but it can still throw IOException if things get strange.
     public boolean lookup(LookupRequest req) throws IOException {
+        long startNanos = System.nanoTime();
+        boolean hit = lookupBlob(req);
+        recordLookup(hit, startNanos);
+        return hit;
+    }
+
+    private boolean lookupBlob(LookupRequest req) throws IOException {
         // Look up in the active region first.
         if (lookupInternal(req.key, mActiveHashStart)) {
             if (getBlob(mActiveDataFile, mFileOffset, req)) {
@@ -456,11 +892,13 @@ public class BlobCache implements Closeable {
         if (lookupInternal(req.key, mInactiveHashStart)) {
             if (getBlob(mInactiveDataFile, mFileOffset, req)) {
                 // If we don't have enough space to insert this blob into
-                // the active file, just return it.
+                // the active file, or compact() will copy it, just return it.
                 if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes
                     || mActiveEntries * 2 >= mMaxEntries) {
+                    queuePendingCopy(req.key);
                     return true;
                 }
+                if (queuePendingCopy(req.key)) return true;
                 // Otherwise copy it over.
                 mSlotOffset = insertOffset;
                 try {
@@ -479,6 +917,185 @@ public class BlobCache implements Closeable {
     }
 
 
+    // Looks up several keys at once. found[i] is set to the result of
+    // lookup(reqs[i]). The blobs are read in the order they are stored in the
+    // data files instead of the order of reqs, so blobs which were written
+    // close to each other are read in one sequential pass. Returns the number
+    // of blobs found.
+    public int lookup(LookupRequest[] reqs, boolean[] found) throws IOException {
+        int n = reqs.length;
+        Utils.assertTrue(n < (1 << 24) && found.length >= n);
+
+        // Each element is (position << 24 | index). The inactive region is
+        // sorted after the active one.
+        long[] order = new long[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            found[i] = false;
+            long position;
+            if (lookupInternal(reqs[i].key, mActiveHashStart)) {
+                position = mFileOffset;
+            } else if (lookupInternal(reqs[i].key, mInactiveHashStart)) {
+                position = (long) mMaxBytes + mFileOffset;
+            } else {
+                mStats.misses++;
+                continue;
+            }
+            order[count++] = (position << 24) | i;
+        }
+        Arrays.sort(order, 0, count);
+
+        int result = 0;
+        for (int i = 0; i < count; i++) {
+            int index = (int) (order[i] & 0xffffff);
+            if (lookup(reqs[index])) {
+                found[index] = true;
+                ++result;
+            }
+        }
+        return result;
+    }
+
+    // Returns a read-only view of the blob for the given key, or null if it
+    // is not available. The view refers directly to a memory mapping of the
+    // data file, so no copy of the blob is made.
+    //
+    // The returned buffer stays readable after this cache is modified, but
+    // its content is only guaranteed until the next region flip, which may
+    // reuse the space. Callers which use it after releasing the lock of the
+    // cache should compare getGeneration() before and after, and discard
+    // what they read from the buffer if it changed.
+    //
+    // Unlike lookup(LookupRequest), a blob found in the inactive region is
+    // copied to the active region with a file-to-file transfer which does
+    // not go through the Java heap.
+    public ByteBuffer lookupMapped(long key) throws IOException {
+        long startNanos = System.nanoTime();
+        ByteBuffer blob = lookupMappedBlob(key);
+        recordLookup(blob != null, startNanos);
+        return blob;
+    }
+
+    // Returns a number which changes whenever the content of the buffers
+    // returned by lookupMapped() may have been overwritten.
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    private ByteBuffer lookupMappedBlob(long key) throws IOException {
+        if (lookupInternal(key, mActiveHashStart)) {
+            ByteBuffer blob = getMappedBlob(mActiveRegion, mFileOffset, key);
+            if (blob != null) return blob;
+        }
+
+        int insertOffset = mSlotOffset;
+
+        if (lookupInternal(key, mInactiveHashStart)) {
+            ByteBuffer blob = getMappedBlob(1 - mActiveRegion, mFileOffset, key);
+            if (blob == null) return null;
+            int length = blob.remaining();
+            if (mActiveBytes + BLOB_HEADER_SIZE + length > mMaxBytes
+                    || mActiveEntries * 2 >= mMaxEntries) {
+                queuePendingCopy(key);
+                return blob;
+            }
+            if (queuePendingCopy(key)) return blob;
+            mSlotOffset = insertOffset;
+            try {
+                insertInternal(key, blob.duplicate(), length);
+                mActiveEntries++;
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+                updateIndexHeader();
+            } catch (Throwable t) {
+                Log.e(TAG, "cannot copy over");
+            }
+            return blob;
+        }
+        return null;
+    }
+
+    // Returns the blob at the specified offset in the data file of the
+    // specified region as a read-only slice of the mapped file, or null if
+    // the blob is not available. See getBlob() for the checks done.
+    private ByteBuffer getMappedBlob(int region, int offset, long key) {
+        try {
+            ByteBuffer header = mapDataFile(region, offset, offset + BLOB_HEADER_SIZE);
+            if (header == null) {
+                Log.w(TAG, "cannot read blob header");
+                return null;
+            }
+            long blobKey = header.getLong(BH_KEY);
+            if (blobKey == 0) {
+                return null; // This entry has been cleared.
+            }
+            if (blobKey != key) {
+                Log.w(TAG, "blob key does not match: " + blobKey);
+                return null;
+            }
+            int sum = header.getInt(BH_CHECKSUM);
+            int blobOffset = header.getInt(BH_OFFSET);
+            if (blobOffset != offset) {
+                Log.w(TAG, "blob offset does not match: " + blobOffset);
+                return null;
+            }
+            int length = header.getInt(BH_LENGTH);
+            if (length < 0 || length > mMaxBytes - offset - BLOB_HEADER_SIZE) {
+                Log.w(TAG, "invalid blob length: " + length);
+                return null;
+            }
+            int start = offset + BLOB_HEADER_SIZE;
+            ByteBuffer blob = mapDataFile(region, start, start + length);
+            if (blob == null) {
+                Log.w(TAG, "cannot read blob data");
+                return null;
+            }
+            if (checkSum(blob.duplicate()) != sum) {
+                Log.w(TAG, "blob checksum does not match: " + sum);
+                return null;
+            }
+            return blob.asReadOnlyBuffer();
+        } catch (Throwable t) {
+            Log.e(TAG, "getMappedBlob failed.", t);
+            return null;
+        }
+    }
+
+    // Returns a little-endian view of [start, end) of the data file of the
+    // specified region, or null if the file is shorter than that. The view
+    // is a slice of the mapping of the chunk which contains start: only the
+    // last chunk is mapped again as the file grows. A range which crosses
+    // the end of its chunk is mapped on its own and not kept.
+    private ByteBuffer mapDataFile(int region, int start, int end)
+            throws IOException {
+        RandomAccessFile file = (region == 0) ? mDataFile0 : mDataFile1;
+        int chunk = start / DATA_CHUNK_SIZE;
+        int chunkStart = chunk * DATA_CHUNK_SIZE;
+        if (end > chunkStart + DATA_CHUNK_SIZE) {
+            if (file.length() < end) return null;
+            ByteBuffer range = file.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, start, end - start);
+            return range.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        MappedByteBuffer[] chunks = mDataChunks[region];
+        if (chunks == null) {
+            chunks = new MappedByteBuffer[mMaxBytes / DATA_CHUNK_SIZE + 1];
+            mDataChunks[region] = chunks;
+        }
+        MappedByteBuffer buffer = chunks[chunk];
+        if (buffer == null || buffer.capacity() < end - chunkStart) {
+            long length = file.length();
+            if (length < end) return null;
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    chunkStart, Math.min(length - chunkStart, DATA_CHUNK_SIZE));
+            chunks[chunk] = buffer;
+        }
+        ByteBuffer range = buffer.duplicate();
+        range.limit(end - chunkStart);
+        range.position(start - chunkStart);
+        return range.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
     // Copies the blob for the specified offset in the specified file to
     // req.buffer. If req.buffer is null or too small, allocate a buffer and
     // assign it to req.buffer.
@@ -622,6 +1239,13 @@ public class BlobCache implements Closeable {
         return (int) mAdler32.getValue();
     }
 
+    // Consumes the remaining bytes of the buffer.
+    int checkSum(ByteBuffer data) {
+        mAdler32.reset();
+        mAdler32.update(data);
+        return (int) mAdler32.getValue();
+    }
+
     int checkSum(byte[] data, int offset, int nbytes) {
         mAdler32.reset();
         mAdler32.update(data, offset, nbytes);
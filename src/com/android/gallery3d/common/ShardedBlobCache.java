@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// This is an on-disk cache which maps a 64-bits key to a byte array, split
+// into several independent BlobCache shards.
+//
+// Each shard is a complete BlobCache with its own index file and its own
+// pair of data files: path + "_s" + i + ".idx", ".0" and ".1". A key is
+// always stored in the same shard, selected from the high bits of the key
+// (the low bits are used by BlobCache itself for hashing). Each shard is
+// guarded by its own lock, so threads working on keys which fall into
+// different shards do not block each other. Unlike BlobCache, the instance
+// of this class can be used by multiple threads concurrently.
+//
+// The maxEntries and maxBytes parameters are the total for the whole cache;
+// they are divided evenly among the shards. The shards are opened in
+// recovery mode, so a shard whose index was damaged keeps its intact blobs.
+//
+// public ShardedBlobCache(String path, int shardCount, int maxEntries, int maxBytes, boolean reset, int version) throws IOException;
+// public void insert(long key, byte[] data) throws IOException;
+// public byte[] lookup(long key) throws IOException;
+// public boolean lookup(LookupRequest req) throws IOException;
+// public int lookup(LookupRequest[] reqs, boolean[] found) throws IOException;
+// public ByteBuffer lookupMapped(long key, int[] generation) throws IOException;
+// public int getGeneration(long key);
+// public void clearEntry(long key) throws IOException;
+// public void setBackgroundCompaction(boolean enabled);
+// public boolean needsCompaction();
+// public int compact(int maxEntriesPerShard);
+// public BlobCache.Stats getStats();
+// public void close();
+// public void syncIndex();
+// public void syncAll();
+// public static void deleteFiles(String path, int shardCount);
+//
+package com.android.gallery3d.common;
+
+import android.util.Log;
+
+import com.android.gallery3d.common.BlobCache.LookupRequest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class ShardedBlobCache implements Closeable {
+    private static final String TAG = "ShardedBlobCache";
+
+    private final BlobCache[] mShards;
+
+    public ShardedBlobCache(String path, int shardCount, int maxEntries,
+            int maxBytes, boolean reset, int version) throws IOException {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("invalid shard count: " + shardCount);
+        }
+        int entriesPerShard = Math.max(1, maxEntries / shardCount);
+        int bytesPerShard = Math.max(1, maxBytes / shardCount);
+        mShards = new BlobCache[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                mShards[i] = new BlobCache(getShardPath(path, i),
+                        entriesPerShard, bytesPerShard, reset, version, true);
+            }
+        } catch (IOException e) {
+            closeShards();
+            throw e;
+        }
+    }
+
+    private static String getShardPath(String path, int shard) {
+        return path + "_s" + shard;
+    }
+
+    // Delete the files associated with the given path previously created
+    // by the ShardedBlobCache constructor.
+    public static void deleteFiles(String path, int shardCount) {
+        for (int i = 0; i < shardCount; i++) {
+            BlobCache.deleteFiles(getShardPath(path, i));
+        }
+    }
+
+    private int getShardIndex(long key) {
+        int hash = (int) (key >>> 40);
+        return (hash & 0x7fffffff) % mShards.length;
+    }
+
+    private BlobCache getShard(long key) {
+        return mShards[getShardIndex(key)];
+    }
+
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    // Inserts a (key, data) pair into the cache.
+    public void insert(long key, byte[] data) throws IOException {
+        BlobCache shard = getShard(key);
+        synchronized (shard) {
+            shard.insert(key, data);
+        }
+    }
+
+    public void clearEntry(long key) throws IOException {
+        BlobCache shard = getShard(key);
+        synchronized (shard) {
+            shard.clearEntry(key);
+        }
+    }
+
+    public byte[] lookup(long key) throws IOException {
+        LookupRequest req = new LookupRequest();
+        req.key = key;
+        return lookup(req) ? req.buffer : null;
+    }
+
+    // See BlobCache.lookup(LookupRequest).
+    public boolean lookup(LookupRequest req) throws IOException {
+        BlobCache shard = getShard(req.key);
+        synchronized (shard) {
+            return shard.lookup(req);
+        }
+    }
+
+    // See BlobCache.lookup(LookupRequest[], boolean[]). The requests are
+    // grouped by shard, and each shard is locked once for its whole group.
+    public int lookup(LookupRequest[] reqs, boolean[] found) throws IOException {
+        int n = reqs.length;
+        int shardCount = mShards.length;
+        int[] shardOf = new int[n];
+        int[] shardSize = new int[shardCount];
+        for (int i = 0; i < n; i++) {
+            shardOf[i] = getShardIndex(reqs[i].key);
+            ++shardSize[shardOf[i]];
+        }
+
+        int result = 0;
+        for (int s = 0; s < shardCount; s++) {
+            if (shardSize[s] == 0) continue;
+            LookupRequest[] group = new LookupRequest[shardSize[s]];
+            int[] indexes = new int[shardSize[s]];
+            for (int i = 0, k = 0; i < n; i++) {
+                if (shardOf[i] != s) continue;
+                group[k] = reqs[i];
+                indexes[k++] = i;
+            }
+            boolean[] groupFound = new boolean[group.length];
+            BlobCache shard = mShards[s];
+            synchronized (shard) {
+                result += shard.lookup(group, groupFound);
+            }
+            for (int k = 0; k < group.length; k++) {
+                found[indexes[k]] = groupFound[k];
+            }
+        }
+        return result;
+    }
+
+    // See BlobCache.lookupMapped(long). The generation of the shard at the
+    // time of the lookup is stored in generation[0]: the content of the
+    // returned buffer is only valid while getGeneration(key) returns it.
+    public ByteBuffer lookupMapped(long key, int[] generation) throws IOException {
+        BlobCache shard = getShard(key);
+        synchronized (shard) {
+            ByteBuffer blob = shard.lookupMapped(key);
+            generation[0] = shard.getGeneration();
+            return blob;
+        }
+    }
+
+    // Returns the generation of the shard of the key, see
+    // BlobCache.getGeneration().
+    public int getGeneration(long key) {
+        BlobCache shard = getShard(key);
+        synchronized (shard) {
+            return shard.getGeneration();
+        }
+    }
+
+    // See BlobCache.setBackgroundCompaction(boolean).
+    public void setBackgroundCompaction(boolean enabled) {
+        for (BlobCache shard : mShards) {
+            synchronized (shard) {
+                shard.setBackgroundCompaction(enabled);
+            }
+        }
+    }
+
+    // Returns true if compact() has work to do in any shard.
+    public boolean needsCompaction() {
+        for (BlobCache shard : mShards) {
+            synchronized (shard) {
+                if (shard.needsCompaction()) return true;
+            }
+        }
+        return false;
+    }
+
+    // Runs BlobCache.compact(int) on each shard in turn. Only one shard is
+    // locked at a time. Returns the total number of blobs copied forward.
+    public int compact(int maxEntriesPerShard) {
+        int copied = 0;
+        for (BlobCache shard : mShards) {
+            synchronized (shard) {
+                try {
+                    copied += shard.compact(maxEntriesPerShard);
+                } catch (IOException e) {
+                    Log.w(TAG, "compact failed", e);
+                }
+            }
+        }
+        return copied;
+    }
+
+    // Returns the sum of the counters of all the shards.
+    public BlobCache.Stats getStats() {
+        BlobCache.Stats stats = new BlobCache.Stats();
+        for (BlobCache shard : mShards) {
+            synchronized (shard) {
+                stats.add(shard.getStats());
+            }
+        }
+        return stats;
+    }
+
+    // Close the cache. All resources are released. No other method should be
+    // called after this is called.
+    @Override
+    public void close() {
+        for (BlobCache shard : mShards) {
+            synchronized (shard) {
+                shard.close();
+            }
+        }
+    }
+
+    private void closeShards() {
+        for (BlobCache shard : mShards) {
+            BlobCache.closeSilently(shard);
+        }
+    }
+
+    public void syncIndex() {
+        for (BlobCache shard : mShards) {
+            synchronized (shard) {
+                shard.syncIndex();
+            }
+        }
+    }
+
+    public void syncAll() {
+        for (BlobCache shard : mShards) {
+            synchronized (shard) {
+                shard.syncAll();
+            }
+        }
+    }
+}
@@ -42,15 +42,25 @@ class BucketHelper {
     //
     // The order of columns below is important: it must match to the index in
     // MediaStore.
+    //
+    // The last three columns give the size and the cover of each album for
+    // the LocalMediaIndex. SQLite takes the bare _id column from the row with
+    // the MAX(date_modified).
     private static final String[] PROJECTION_BUCKET = {
             ImageColumns.BUCKET_ID,
             FileColumns.MEDIA_TYPE,
-            ImageColumns.BUCKET_DISPLAY_NAME};
+            ImageColumns.BUCKET_DISPLAY_NAME,
+            "count(*)",
+            "MAX(" + FileColumns.DATE_MODIFIED + ")",
+            FileColumns._ID};
 
     // The indices should match the above projections.
     private static final int INDEX_BUCKET_ID = 0;
     private static final int INDEX_MEDIA_TYPE = 1;
     private static final int INDEX_BUCKET_NAME = 2;
+    private static final int INDEX_COUNT = 3;
+    private static final int INDEX_DATE_MODIFIED = 4;
+    private static final int INDEX_COVER_ID = 5;
 
     // We want to order the albums by reverse chronological order. We abuse the
     // "WHERE" parameter to insert a "GROUP BY" clause into the SQL statement.
@@ -154,6 +164,7 @@ class BucketHelper {
             return new BucketEntry[0];
         }
         ArrayList<BucketEntry> buffer = new ArrayList<BucketEntry>();
+        HashMap<Integer, BucketEntry> buckets = new HashMap<Integer, BucketEntry>(64);
         int typeBits = 0;
         if ((type & MediaObject.MEDIA_TYPE_IMAGE) != 0) {
             typeBits |= (1 << FileColumns.MEDIA_TYPE_IMAGE);
@@ -163,19 +174,42 @@ class BucketHelper {
         }
         try {
             while (cursor.moveToNext()) {
-                if ((typeBits & (1 << cursor.getInt(INDEX_MEDIA_TYPE))) != 0) {
-                    BucketEntry entry = new BucketEntry(
-                            cursor.getInt(INDEX_BUCKET_ID),
-                            cursor.getString(INDEX_BUCKET_NAME));
-                    if (!buffer.contains(entry)) {
+                int mediaType = cursor.getInt(INDEX_MEDIA_TYPE);
+                if ((typeBits & (1 << mediaType)) != 0) {
+                    int bucketId = cursor.getInt(INDEX_BUCKET_ID);
+                    BucketEntry entry = buckets.get(bucketId);
+                    if (entry == null) {
+                        entry = new BucketEntry(bucketId,
+                                cursor.getString(INDEX_BUCKET_NAME));
+                        buckets.put(bucketId, entry);
                         buffer.add(entry);
                     }
+                    if (mediaType == FileColumns.MEDIA_TYPE_IMAGE) {
+                        entry.imageCount = cursor.getInt(INDEX_COUNT);
+                        entry.imageDate = cursor.getLong(INDEX_DATE_MODIFIED);
+                        entry.imageCoverId = cursor.getInt(INDEX_COVER_ID);
+                    } else {
+                        entry.videoCount = cursor.getInt(INDEX_COUNT);
+                        entry.videoDate = cursor.getLong(INDEX_DATE_MODIFIED);
+                        entry.videoCoverId = cursor.getInt(INDEX_COVER_ID);
+                    }
                 }
                 if (jc.isCancelled()) return null;
             }
         } finally {
             Utils.closeSilently(cursor);
         }
+        for (BucketEntry entry : buffer) {
+            // No row means no item of that type.
+            if (entry.imageCount == UNKNOWN_COUNT
+                    && (type & MediaObject.MEDIA_TYPE_IMAGE) != 0) {
+                entry.imageCount = 0;
+            }
+            if (entry.videoCount == UNKNOWN_COUNT
+                    && (type & MediaObject.MEDIA_TYPE_VIDEO) != 0) {
+                entry.videoCount = 0;
+            }
+        }
         return buffer.toArray(new BucketEntry[buffer.size()]);
     }
 
@@ -216,11 +250,23 @@ class BucketHelper {
         }
     }
 
+    public static final int UNKNOWN_COUNT = -1;
+
     public static class BucketEntry {
         public String bucketName;
         public int bucketId;
         public int dateTaken;
 
+        // The number of images (videos) in the bucket, and the _id and the
+        // date_modified of the latest one. Only known when loaded from the
+        // files table: the counts are UNKNOWN_COUNT otherwise.
+        public int imageCount = UNKNOWN_COUNT;
+        public int imageCoverId;
+        public long imageDate;
+        public int videoCount = UNKNOWN_COUNT;
+        public int videoCoverId;
+        public long videoDate;
+
         public BucketEntry(int id, String name) {
             bucketId = id;
             bucketName = Utils.ensureNotNull(name);
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+// Describes how the list of items of a MediaSet changed between two data
+// versions, like a diff: it is a sorted list of hunks, hunk k replacing the
+// getRemoved(k) items at getOldStart(k) in the old list with the
+// getInserted(k) items at getNewStart(k) in the new list. The items outside
+// the hunks are the same in both lists, in the same order.
+//
+// See MediaSet.getChangesSince().
+public class ChangeSet {
+    private final int mOldSize;
+    private final int mNewSize;
+    private final int mHunkCount;
+    private final int[] mOldStart;
+    private final int[] mNewStart;
+    private final int[] mRemoved;
+    private final int[] mInserted;
+
+    // The ids of the items of the new list, and the parent of their paths.
+    private final Path mItemPath;
+    private final int[] mNewIds;
+
+    private ChangeSet(int oldSize, int newSize, int hunkCount, int[] oldStart,
+            int[] newStart, int[] removed, int[] inserted, Path itemPath,
+            int[] newIds) {
+        mOldSize = oldSize;
+        mNewSize = newSize;
+        mHunkCount = hunkCount;
+        mOldStart = oldStart;
+        mNewStart = newStart;
+        mRemoved = removed;
+        mInserted = inserted;
+        mItemPath = itemPath;
+        mNewIds = newIds;
+    }
+
+    public int getOldSize() {
+        return mOldSize;
+    }
+
+    public int getNewSize() {
+        return mNewSize;
+    }
+
+    public int getHunkCount() {
+        return mHunkCount;
+    }
+
+    public int getOldStart(int hunk) {
+        return mOldStart[hunk];
+    }
+
+    public int getNewStart(int hunk) {
+        return mNewStart[hunk];
+    }
+
+    public int getRemoved(int hunk) {
+        return mRemoved[hunk];
+    }
+
+    public int getInserted(int hunk) {
+        return mInserted[hunk];
+    }
+
+    // Returns the index in the old list of the item at newIndex in the new
+    // list, or -1 if the item is new (or has changed).
+    public int getOldIndex(int newIndex) {
+        if (newIndex < 0 || newIndex >= mNewSize) return -1;
+
+        // Find the last hunk starting at or before newIndex.
+        int low = 0;
+        int high = mHunkCount - 1;
+        int hunk = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mNewStart[mid] <= newIndex) {
+                hunk = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (hunk < 0) return newIndex;
+        int newEnd = mNewStart[hunk] + mInserted[hunk];
+        if (newIndex < newEnd) return -1;
+        return newIndex - newEnd + mOldStart[hunk] + mRemoved[hunk];
+    }
+
+    // Returns the path of the item at newIndex in the new list, or null if it
+    // is not known. It can be used to check the items obtained from the old
+    // list still match.
+    public Path getPath(int newIndex) {
+        if (mNewIds == null || newIndex < 0 || newIndex >= mNewSize) return null;
+        return mItemPath.getChild(mNewIds[newIndex]);
+    }
+
+    // Compares two lists of items sorted by date descending then id
+    // descending. An item is identified by its id and date, so an item whose
+    // date has changed is removed and inserted. Returns null if there are
+    // more than maxHunks hunks, in which case a full reload is cheaper.
+    static ChangeSet diff(Path itemPath,
+            int[] oldIds, long[] oldDates, int oldSize,
+            int[] newIds, long[] newDates, int newSize, int maxHunks) {
+        int[] oldStart = new int[maxHunks];
+        int[] newStart = new int[maxHunks];
+        int[] removed = new int[maxHunks];
+        int[] inserted = new int[maxHunks];
+        int hunkCount = 0;
+        boolean inHunk = false;
+
+        int i = 0;
+        int j = 0;
+        while (i < oldSize || j < newSize) {
+            int order;
+            if (i == oldSize) {
+                order = 1;
+            } else if (j == newSize) {
+                order = -1;
+            } else {
+                order = compare(oldDates[i], oldIds[i], newDates[j], newIds[j]);
+            }
+            if (order == 0) {
+                inHunk = false;
+                ++i;
+                ++j;
+                continue;
+            }
+            if (!inHunk) {
+                if (hunkCount == maxHunks) return null;
+                oldStart[hunkCount] = i;
+                newStart[hunkCount] = j;
+                ++hunkCount;
+                inHunk = true;
+            }
+            if (order < 0) {
+                // The old item comes first: it is not in the new list.
+                ++removed[hunkCount - 1];
+                ++i;
+            } else {
+                ++inserted[hunkCount - 1];
+                ++j;
+            }
+        }
+        return new ChangeSet(oldSize, newSize, hunkCount, oldStart, newStart,
+                removed, inserted, itemPath, newIds);
+    }
+
+    // Returns a negative number if (date1, id1) comes first in the order of
+    // the lists, a positive number if (date2, id2) comes first.
+    private static int compare(long date1, int id1, long date2, int id2) {
+        if (date1 != date2) return date1 > date2 ? -1 : 1;
+        if (id1 != id2) return id1 > id2 ? -1 : 1;
+        return 0;
+    }
+}
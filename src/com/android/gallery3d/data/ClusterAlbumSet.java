@@ -32,6 +32,8 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
     private int mKind;
     private ArrayList<ClusterAlbum> mAlbums = new ArrayList<ClusterAlbum>();
     private boolean mFirstReloadDone;
+    // The clustering of the albums, kept for incremental updates.
+    private Clustering mClustering;
 
     public ClusterAlbumSet(Path path, GalleryApp application,
             MediaSet baseSet, int kind) {
@@ -61,7 +63,11 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
     public long reload() {
         if (mBaseSet.reload() > mDataVersion) {
             if (mFirstReloadDone) {
-                updateClustersContents();
+                if (mClustering != null && mClustering.update(mBaseSet)) {
+                    updateAlbums(mClustering);
+                } else {
+                    updateClustersContents();
+                }
             } else {
                 updateClusters();
                 mFirstReloadDone = true;
@@ -82,7 +88,6 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
     }
 
     private void updateClusters() {
-        mAlbums.clear();
         Clustering clustering;
         Context context = mApplication.getAndroidContext();
         switch (mKind) {
@@ -107,6 +112,12 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
         }
 
         clustering.run(mBaseSet);
+        mClustering = clustering;
+        updateAlbums(clustering);
+    }
+
+    private void updateAlbums(Clustering clustering) {
+        mAlbums.clear();
         int n = clustering.getNumberOfClusters();
         DataManager dataManager = mApplication.getDataManager();
         for (int i = 0; i < n; i++) {
@@ -122,7 +133,7 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
             }
 
             ClusterAlbum album;
-            synchronized (DataManager.LOCK) {
+            synchronized (DataManager.getLock(childPath)) {
                 album = (ClusterAlbum) dataManager.peekMediaObject(childPath);
                 if (album == null) {
                     album = new ClusterAlbum(childPath, dataManager, this);
@@ -136,13 +147,11 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
     }
 
     private void updateClustersContents() {
-        final HashSet<Path> existing = new HashSet<Path>();
-        mBaseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
-            @Override
-            public void consume(int index, MediaItem item) {
-                existing.add(item.getPath());
-            }
-        });
+        MediaSetSnapshot snapshot = MediaSetSnapshot.get(mBaseSet);
+        HashSet<Path> existing = new HashSet<Path>(snapshot.count);
+        for (int i = 0; i < snapshot.count; i++) {
+            existing.add(snapshot.paths[i]);
+        }
 
         int n = mAlbums.size();
 
@@ -23,6 +23,16 @@ public abstract class Clustering {
     public abstract int getNumberOfClusters();
     public abstract ArrayList<Path> getCluster(int index);
     public abstract String getClusterName(int index);
+
+    // Updates the clusters of the last run() to the current items of the
+    // base set, which can be much faster than run() again. The number and
+    // the order of the clusters may change. Returns false if this is not
+    // supported, or not possible with the current settings. ClusterAlbumSet
+    // then only drops the deleted items from the clusters it has, and new
+    // items are not shown until the clustering is run() again.
+    public boolean update(MediaSet baseSet) {
+        return false;
+    }
     public MediaItem getClusterCover(int index) {
         return null;
     }
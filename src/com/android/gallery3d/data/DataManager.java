@@ -60,9 +60,14 @@ public class DataManager implements StitchingChangeListener {
     public static final int INCLUDE_LOCAL_ALL_ONLY =
             INCLUDE_LOCAL_ONLY | INCLUDE_IMAGE | INCLUDE_VIDEO;
 
-    // Any one who would like to access data should require this lock
-    // to prevent concurrency issue.
-    public static final Object LOCK = new Object();
+    // Returns the lock to hold while checking whether the path has a
+    // MediaObject and creating it, so there is only one object per path.
+    // There is one lock per path, and the creation of an object only uses
+    // the objects of other paths, so the threads creating the objects of
+    // different paths don't wait for each other.
+    public static Object getLock(Path path) {
+        return path;
+    }
 
     public static DataManager from(Context context) {
         GalleryApp app = (GalleryApp) context.getApplicationContext();
@@ -152,7 +157,7 @@ public class DataManager implements StitchingChangeListener {
     }
 
     // A common usage of this method is:
-    // synchronized (DataManager.LOCK) {
+    // synchronized (DataManager.getLock(path)) {
     //     MediaObject object = peekMediaObject(path);
     //     if (object == null) {
     //         object = createMediaObject(...);
@@ -163,7 +168,7 @@ public class DataManager implements StitchingChangeListener {
     }
 
     public MediaObject getMediaObject(Path path) {
-        synchronized (LOCK) {
+        synchronized (getLock(path)) {
             MediaObject obj = path.getObject();
             if (obj != null) return obj;
 
@@ -37,6 +37,7 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public class DecodeUtils {
     private static final String TAG = "DecodeUtils";
@@ -299,6 +300,92 @@ public class DecodeUtils {
         }
     }
 
+    // This is the same as the method above except the source data comes
+    // from a ByteBuffer (e.g. a mapped file) instead of a byte array. The
+    // position of the buffer is not changed.
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static Bitmap decodeUsingPool(JobContext jc, ByteBuffer data,
+            Options options) {
+        if (options == null) options = new BitmapFactory.Options();
+        if (options.inSampleSize < 1) options.inSampleSize = 1;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inBitmap = (options.inSampleSize == 1)
+                ? findCachedBitmap(jc, data, options) : null;
+        try {
+            Bitmap bitmap = decode(jc, data, options);
+            if (options.inBitmap != null && options.inBitmap != bitmap) {
+                GalleryBitmapPool.getInstance().put(options.inBitmap);
+                options.inBitmap = null;
+            }
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) throw e;
+
+            Log.w(TAG, "decode fail with a given bitmap, try decode to a new bitmap");
+            GalleryBitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
+            return decode(jc, data, options);
+        }
+    }
+
+    public static Bitmap decode(JobContext jc, ByteBuffer data, Options options) {
+        if (options == null) options = new Options();
+        jc.setCancelListener(new DecodeCanceller(options));
+        setOptionsMutable(options);
+        return ensureGLCompatibleBitmap(BitmapFactory.decodeStream(
+                new ByteBufferInputStream(data), null, options));
+    }
+
+    public static void decodeBounds(JobContext jc, ByteBuffer data,
+            Options options) {
+        Utils.assertTrue(options != null);
+        options.inJustDecodeBounds = true;
+        jc.setCancelListener(new DecodeCanceller(options));
+        BitmapFactory.decodeStream(new ByteBufferInputStream(data), null, options);
+        options.inJustDecodeBounds = false;
+    }
+
+    // Reads the remaining bytes of a ByteBuffer without touching its position.
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer.duplicate();
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) return 0;
+            if (!mBuffer.hasRemaining()) return -1;
+            length = Math.min(length, mBuffer.remaining());
+            mBuffer.get(buffer, offset, length);
+            return length;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+
+    private static Bitmap findCachedBitmap(JobContext jc, ByteBuffer data,
+            Options options) {
+        decodeBounds(jc, data, options);
+        return GalleryBitmapPool.getInstance().get(options.outWidth, options.outHeight);
+    }
+
     private static Bitmap findCachedBitmap(JobContext jc, byte[] data,
             int offset, int length, Options options) {
         decodeBounds(jc, data, offset, length, options);
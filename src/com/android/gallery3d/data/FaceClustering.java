@@ -22,57 +22,132 @@ import android.graphics.Rect;
 import com.android.gallery3d.R;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.TreeMap;
 
 // maxwen DISABLED!
+//
+// The clusters are kept with the data version of the base set they were
+// computed for, so update() can move only the items added, removed or
+// whose faces changed since then.
 public class FaceClustering extends Clustering {
     @SuppressWarnings("unused")
     private static final String TAG = "FaceClustering";
 
-    private FaceCluster[] mClusters;
+    private final TreeMap<Face, FaceCluster> mClusterMap =
+            new TreeMap<Face, FaceCluster>();
+    private FaceCluster mUntagged;
+    private FaceCluster[] mClusters = new FaceCluster[0];
     private String mUntaggedString;
     private Context mContext;
+    // All the clustered items, and the data version of the base set they
+    // were clustered with.
+    private HashMap<Path, FaceItem> mItems = new HashMap<Path, FaceItem>();
+    private long mVersion = MediaObject.INVALID_DATA_VERSION;
+
+    private static class FaceItem {
+        Path path;
+        Face[] faces;
+        // The index of the item in the base set.
+        int position;
+    }
+
+    private static final Comparator<FaceItem> sPositionComparator =
+            new Comparator<FaceItem>() {
+        @Override
+        public int compare(FaceItem item1, FaceItem item2) {
+            return item1.position - item2.position;
+        }
+    };
 
     private class FaceCluster {
-        ArrayList<Path> mPaths = new ArrayList<Path>();
+        ArrayList<FaceItem> mItems = new ArrayList<FaceItem>();
+        // The paths of the items in base set order, or null if the items
+        // changed since they were computed. The items are kept in the same
+        // order while this is set.
+        ArrayList<Path> mPaths;
+        // The face the cluster is for, or null for the untagged items.
+        Face mKey;
         String mName;
-        MediaItem mCoverItem;
+        Path mCoverPath;
         Rect mCoverRegion;
         int mCoverFaceIndex;
 
-        public FaceCluster(String name) {
+        public FaceCluster(Face key, String name) {
+            mKey = key;
             mName = name;
         }
 
-        public void add(MediaItem item, int faceIndex) {
-            Path path = item.getPath();
-            mPaths.add(path);
-            Face[] faces = item.getFaces();
-            if (faces != null) {
-                Face face = faces[faceIndex];
-                if (mCoverItem == null) {
-                    mCoverItem = item;
-                    mCoverRegion = face.getPosition();
-                    mCoverFaceIndex = faceIndex;
-                } else {
-                    Rect region = face.getPosition();
-                    if (mCoverRegion.width() < region.width() &&
-                            mCoverRegion.height() < region.height()) {
-                        mCoverItem = item;
-                        mCoverRegion = face.getPosition();
-                        mCoverFaceIndex = faceIndex;
+        public void add(FaceItem item, int faceIndex) {
+            mItems.add(item);
+            mPaths = null;
+            if (faceIndex >= 0) updateCover(item, faceIndex);
+        }
+
+        public void remove(FaceItem item) {
+            mItems.remove(item);
+            mPaths = null;
+            if (mKey != null && item.path == mCoverPath) {
+                // Pick the cover again among the remaining items.
+                mCoverPath = null;
+                mCoverRegion = null;
+                for (FaceItem other : getSortedItems()) {
+                    for (int j = 0; j < other.faces.length; j++) {
+                        if (other.faces[j].compareTo(mKey) == 0) {
+                            updateCover(other, j);
+                        }
                     }
                 }
             }
         }
 
+        private void updateCover(FaceItem item, int faceIndex) {
+            Rect region = item.faces[faceIndex].getPosition();
+            if (mCoverPath == null || (mCoverRegion.width() < region.width() &&
+                    mCoverRegion.height() < region.height())) {
+                mCoverPath = item.path;
+                mCoverRegion = region;
+                mCoverFaceIndex = faceIndex;
+            }
+        }
+
         public int size() {
-            return mPaths.size();
+            return mItems.size();
+        }
+
+        private ArrayList<FaceItem> getSortedItems() {
+            Collections.sort(mItems, sPositionComparator);
+            return mItems;
+        }
+
+        public ArrayList<Path> getPaths() {
+            if (mPaths != null && !isInOrder()) {
+                // Some items moved in the base set, e.g. their date changed.
+                mPaths = null;
+            }
+            if (mPaths == null) {
+                getSortedItems();
+                mPaths = new ArrayList<Path>(mItems.size());
+                for (FaceItem item : mItems) {
+                    mPaths.add(item.path);
+                }
+            }
+            return mPaths;
+        }
+
+        // Returns true if the items are still in base set order.
+        private boolean isInOrder() {
+            for (int i = 1, n = mItems.size(); i < n; i++) {
+                if (mItems.get(i - 1).position > mItems.get(i).position) return false;
+            }
+            return true;
         }
 
         public MediaItem getCover() {
-            if (mCoverItem != null) {
-                return mCoverItem;
+            if (mCoverPath != null) {
+                return (MediaItem) DataManager.from(mContext).getMediaObject(mCoverPath);
             }
             return null;
         }
@@ -81,39 +156,97 @@ public class FaceClustering extends Clustering {
     public FaceClustering(Context context) {
         mUntaggedString = context.getResources().getString(R.string.untagged);
         mContext = context;
+        mUntagged = new FaceCluster(null, mUntaggedString);
     }
 
     @Override
     public void run(MediaSet baseSet) {
-        final TreeMap<Face, FaceCluster> map =
-                new TreeMap<Face, FaceCluster>();
-        final FaceCluster untagged = new FaceCluster(mUntaggedString);
-
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
-            @Override
-            public void consume(int index, MediaItem item) {
-                Face[] faces = item.getFaces();
-                if (faces == null || faces.length == 0) {
-                    untagged.add(item, -1);
-                    return;
-                }
-                for (int j = 0; j < faces.length; j++) {
-                    Face face = faces[j];
-                    FaceCluster cluster = map.get(face);
-                    if (cluster == null) {
-                        cluster = new FaceCluster(face.getName());
-                        map.put(face, cluster);
-                    }
-                    cluster.add(item, j);
+        mClusterMap.clear();
+        mUntagged = new FaceCluster(null, mUntaggedString);
+        mItems = new HashMap<Path, FaceItem>();
+        mVersion = MediaObject.INVALID_DATA_VERSION;
+        update(baseSet);
+    }
+
+    // Moves the items added, removed or whose faces changed since the last
+    // run() or update() in or out of their clusters, and picks the cover
+    // again only for the clusters which lost theirs.
+    @Override
+    public boolean update(MediaSet baseSet) {
+        if (baseSet.getDataVersion() == mVersion) return true;
+
+        MediaSetSnapshot snapshot = MediaSetSnapshot.get(baseSet);
+        HashMap<Path, FaceItem> oldItems = mItems;
+        HashMap<Path, FaceItem> items = new HashMap<Path, FaceItem>(snapshot.count);
+        ArrayList<FaceItem> added = new ArrayList<FaceItem>();
+        for (int i = 0; i < snapshot.count; i++) {
+            Path path = snapshot.paths[i];
+            Face[] faces = snapshot.faces[i];
+            FaceItem item = oldItems.remove(path);
+            if (item == null || !sameFaces(item.faces, faces)) {
+                // The old one (if any) is left in oldItems to be removed.
+                if (item != null) oldItems.put(path, item);
+                item = new FaceItem();
+                item.path = path;
+                item.faces = faces;
+                added.add(item);
+            }
+            item.position = i;
+            items.put(path, item);
+        }
+
+        for (FaceItem item : oldItems.values()) {
+            if (item.faces == null || item.faces.length == 0) {
+                mUntagged.remove(item);
+                continue;
+            }
+            for (Face face : item.faces) {
+                FaceCluster cluster = mClusterMap.get(face);
+                if (cluster == null) continue;
+                cluster.remove(item);
+                if (cluster.size() == 0) mClusterMap.remove(face);
+            }
+        }
+        for (FaceItem item : added) {
+            if (item.faces == null || item.faces.length == 0) {
+                mUntagged.add(item, -1);
+                continue;
+            }
+            for (int j = 0; j < item.faces.length; j++) {
+                Face face = item.faces[j];
+                FaceCluster cluster = mClusterMap.get(face);
+                if (cluster == null) {
+                    cluster = new FaceCluster(face, face.getName());
+                    mClusterMap.put(face, cluster);
                 }
+                cluster.add(item, j);
             }
-        });
+        }
+
+        mItems = items;
+        mVersion = snapshot.version;
+
+        int m = mClusterMap.size();
+        mClusters = mClusterMap.values().toArray(
+                new FaceCluster[m + ((mUntagged.size() > 0) ? 1 : 0)]);
+        if (mUntagged.size() > 0) {
+            mClusters[m] = mUntagged;
+        }
+        return true;
+    }
 
-        int m = map.size();
-        mClusters = map.values().toArray(new FaceCluster[m + ((untagged.size() > 0) ? 1 : 0)]);
-        if (untagged.size() > 0) {
-            mClusters[m] = untagged;
+    // Faces are equal when they are of the same person, so compare their
+    // positions too: they decide the covers.
+    private static boolean sameFaces(Face[] faces1, Face[] faces2) {
+        if (faces1 == faces2) return true;
+        if (faces1 == null || faces2 == null) return false;
+        if (faces1.length != faces2.length) return false;
+        for (int i = 0; i < faces1.length; i++) {
+            if (!faces1[i].equals(faces2[i])) return false;
+            if (!faces1[i].getName().equals(faces2[i].getName())) return false;
+            if (!faces1[i].getPosition().equals(faces2[i].getPosition())) return false;
         }
+        return true;
     }
 
     @Override
@@ -123,7 +256,7 @@ public class FaceClustering extends Clustering {
 
     @Override
     public ArrayList<Path> getCluster(int index) {
-        return mClusters[index].mPaths;
+        return mClusters[index].getPaths();
     }
 
     @Override
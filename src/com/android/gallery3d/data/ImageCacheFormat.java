@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The encoding of the images stored in the ImageCacheService.
+ *
+ * The encoded data starts with the id of its format, so images written in
+ * different formats can be decoded side by side, and the format used for new
+ * images can be changed (see ImageCacheService.setImageFormat()) without
+ * clearing the cache.
+ */
+public abstract class ImageCacheFormat {
+    public static final int ID_JPEG = 0;
+    public static final int ID_WEBP = 1;
+    public static final int ID_RAW = 2;
+
+    private static final int JPEG_QUALITY = 90;
+    private static final int WEBP_QUALITY = 80;
+
+    // Compressed with JPEG: small and reasonably fast to decode.
+    public static final ImageCacheFormat JPEG =
+            new CompressedFormat(ID_JPEG, CompressFormat.JPEG, JPEG_QUALITY);
+    // Compressed with WebP: smaller than JPEG for the same quality, but
+    // slower to encode and to decode.
+    public static final ImageCacheFormat WEBP =
+            new CompressedFormat(ID_WEBP, CompressFormat.WEBP, WEBP_QUALITY);
+    // The pixels as ARGB_8888: no decoding at all, the data is copied into a
+    // pooled bitmap. Large on disk.
+    public static final ImageCacheFormat RAW = new RawFormat(false);
+    // Like RAW, but opaque images are stored as RGB_565, which halves their
+    // size. Such bitmaps cannot be reused through the GalleryBitmapPool.
+    // Opaque means !hasAlpha(): the ARGB_8888 bitmaps made by BitmapUtils
+    // always have alpha, so they are stored as ARGB_8888 anyway.
+    public static final ImageCacheFormat RAW_RGB565 = new RawFormat(true);
+
+    private final int mId;
+
+    protected ImageCacheFormat(int id) {
+        mId = id;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * Encodes the bitmap. The first byte of the result is the id of this
+     * format.
+     */
+    public abstract byte[] encode(Bitmap bitmap);
+
+    // Decodes the data following the format id.
+    protected abstract Bitmap onDecode(JobContext jc, ByteBuffer data);
+
+    protected abstract Bitmap onDecode(JobContext jc, byte[] data, int offset, int length);
+
+    private static ImageCacheFormat getFormat(int id) {
+        switch (id) {
+            case ID_JPEG: return JPEG;
+            case ID_WEBP: return WEBP;
+            case ID_RAW: return RAW;
+            default: return null;
+        }
+    }
+
+    /**
+     * Decodes data returned by encode(), from the position to the limit of
+     * the buffer. Returns null if the data cannot be decoded.
+     */
+    public static Bitmap decode(JobContext jc, ByteBuffer data) {
+        if (!data.hasRemaining()) return null;
+        ImageCacheFormat format = getFormat(data.get(data.position()));
+        if (format == null) return null;
+        data.position(data.position() + 1);
+        return format.onDecode(jc, data);
+    }
+
+    /**
+     * Decodes data returned by encode(). Returns null if the data cannot be
+     * decoded.
+     */
+    public static Bitmap decode(JobContext jc, byte[] data, int offset, int length) {
+        if (length < 1) return null;
+        ImageCacheFormat format = getFormat(data[offset]);
+        if (format == null) return null;
+        return format.onDecode(jc, data, offset + 1, length - 1);
+    }
+
+    private static BitmapFactory.Options newOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return options;
+    }
+
+    private static class CompressedFormat extends ImageCacheFormat {
+        private final CompressFormat mCompressFormat;
+        private final int mQuality;
+
+        CompressedFormat(int id, CompressFormat compressFormat, int quality) {
+            super(id);
+            mCompressFormat = compressFormat;
+            mQuality = quality;
+        }
+
+        @Override
+        public byte[] encode(Bitmap bitmap) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(65536);
+            baos.write(getId());
+            bitmap.compress(mCompressFormat, mQuality, baos);
+            return baos.toByteArray();
+        }
+
+        @Override
+        protected Bitmap onDecode(JobContext jc, ByteBuffer data) {
+            return DecodeUtils.decodeUsingPool(jc, data, newOptions());
+        }
+
+        @Override
+        protected Bitmap onDecode(JobContext jc, byte[] data, int offset, int length) {
+            return DecodeUtils.decodeUsingPool(jc, data, offset, length, newOptions());
+        }
+    }
+
+    // The data following the format id:
+    // [0] Width
+    // [4] Height
+    // [8] Config, CONFIG_ARGB_8888 or CONFIG_RGB_565
+    // [9] Pixels, as written by Bitmap.copyPixelsToBuffer()
+    //
+    // The pixels are in the native byte order, so the data must not be moved
+    // to another device. This is fine for a cache.
+    private static class RawFormat extends ImageCacheFormat {
+        private static final int HEADER_SIZE = 9;
+        private static final int CONFIG_ARGB_8888 = 0;
+        private static final int CONFIG_RGB_565 = 1;
+
+        private final boolean mAllowRgb565;
+
+        RawFormat(boolean allowRgb565) {
+            super(ID_RAW);
+            mAllowRgb565 = allowRgb565;
+        }
+
+        @Override
+        public byte[] encode(Bitmap bitmap) {
+            boolean rgb565 = mAllowRgb565 && !bitmap.hasAlpha();
+            Bitmap.Config config = rgb565
+                    ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            Bitmap source = (bitmap.getConfig() == config)
+                    ? bitmap : bitmap.copy(config, false);
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(
+                        1 + HEADER_SIZE + source.getByteCount());
+                buffer.put((byte) getId());
+                buffer.putInt(source.getWidth());
+                buffer.putInt(source.getHeight());
+                buffer.put((byte) (rgb565 ? CONFIG_RGB_565 : CONFIG_ARGB_8888));
+                source.copyPixelsToBuffer(buffer);
+                return buffer.array();
+            } finally {
+                if (source != bitmap) source.recycle();
+            }
+        }
+
+        @Override
+        protected Bitmap onDecode(JobContext jc, ByteBuffer data) {
+            if (data.remaining() < HEADER_SIZE) return null;
+            int width = data.getInt();
+            int height = data.getInt();
+            int config = data.get();
+            if (width <= 0 || height <= 0) return null;
+            // Check the size before allocating anything: a mapped buffer may
+            // be overwritten while it is decoded, so the header can be junk.
+            int bytesPerPixel = (config == CONFIG_RGB_565) ? 2 : 4;
+            if ((long) width * height * bytesPerPixel != data.remaining()) return null;
+
+            Bitmap bitmap;
+            if (config == CONFIG_ARGB_8888) {
+                bitmap = GalleryBitmapPool.getInstance().get(width, height);
+                if (bitmap == null) {
+                    bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                }
+            } else if (config == CONFIG_RGB_565) {
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+            } else {
+                return null;
+            }
+            if (jc.isCancelled() || data.remaining() != bitmap.getByteCount()) {
+                // Only ARGB_8888 bitmaps go back to the pool.
+                if (config != CONFIG_ARGB_8888
+                        || !GalleryBitmapPool.getInstance().put(bitmap)) {
+                    bitmap.recycle();
+                }
+                return null;
+            }
+            if (!data.isDirect() && !data.hasArray()) {
+                // A read-only heap buffer gives the native copy no pointer to
+                // the pixels: copy them out first.
+                byte[] pixels = new byte[data.remaining()];
+                data.get(pixels);
+                data = ByteBuffer.wrap(pixels);
+            }
+            bitmap.copyPixelsFromBuffer(data);
+            return bitmap;
+        }
+
+        @Override
+        protected Bitmap onDecode(JobContext jc, byte[] data, int offset, int length) {
+            return onDecode(jc, ByteBuffer.wrap(data, offset, length));
+        }
+    }
+}
@@ -17,14 +17,16 @@
 package com.android.gallery3d.data;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
 import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.common.BitmapUtils;
 import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
+import com.android.gallery3d.util.ThreadPool;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
+import java.nio.ByteBuffer;
+
 abstract class ImageCacheRequest implements Job<Bitmap> {
     private static final String TAG = "ImageCacheRequest";
 
@@ -53,21 +55,40 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
     public Bitmap run(JobContext jc) {
         ImageCacheService cacheService = mApplication.getImageCacheService();
 
+        // The cache lookups are disk I/O: don't hold a CPU slot meanwhile.
+        // setMode returns false if the job is cancelled.
+        if (!jc.setMode(ThreadPool.MODE_DISK)) return null;
+
+        // Try the mapped cache file first, which decodes straight from the
+        // page cache without copying the data into a pooled buffer. The
+        // cache may be written while the job waits for a CPU slot or
+        // decodes, so the result is only used if the data was not
+        // overwritten meanwhile.
+        int[] generation = new int[1];
+        ByteBuffer data = cacheService.getMappedImageData(
+                mPath, mTimeModified, mType, generation);
+        if (data != null) {
+            if (!jc.setMode(ThreadPool.MODE_CPU)) return null;
+            Bitmap bitmap = ImageCacheFormat.decode(jc, data);
+            if (jc.isCancelled()) return null;
+            if (cacheService.isMappedImageDataValid(
+                    mPath, mTimeModified, mType, generation[0])) {
+                if (bitmap != null) return bitmap;
+                Log.w(TAG, "decode mapped failed " + debugTag());
+            } else if (bitmap != null
+                    && !GalleryBitmapPool.getInstance().put(bitmap)) {
+                bitmap.recycle();
+            }
+            if (!jc.setMode(ThreadPool.MODE_DISK)) return null;
+        }
+
         BytesBuffer buffer = MediaItem.getBytesBufferPool().get();
         try {
             boolean found = cacheService.getImageData(mPath, mTimeModified, mType, buffer);
-            if (jc.isCancelled()) return null;
+            if (!jc.setMode(ThreadPool.MODE_CPU)) return null;
             if (found) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                Bitmap bitmap;
-                if (mType == MediaItem.TYPE_MICROTHUMBNAIL) {
-                    bitmap = DecodeUtils.decodeUsingPool(jc,
-                            buffer.data, buffer.offset, buffer.length, options);
-                } else {
-                    bitmap = DecodeUtils.decodeUsingPool(jc,
-                            buffer.data, buffer.offset, buffer.length, options);
-                }
+                Bitmap bitmap = ImageCacheFormat.decode(jc,
+                        buffer.data, buffer.offset, buffer.length);
                 if (bitmap == null && !jc.isCancelled()) {
                     Log.w(TAG, "decode cached failed " + debugTag());
                 }
@@ -91,9 +112,13 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
         }
         if (jc.isCancelled()) return null;
 
-        byte[] array = BitmapUtils.compressToBytes(bitmap);
+        byte[] array = cacheService.getImageFormat(mType).encode(bitmap);
         if (jc.isCancelled()) return null;
 
+        // Write the cache before returning, so a request made right after
+        // this one finds the image. The write is disk I/O as well: give the
+        // CPU slot back first.
+        jc.setMode(ThreadPool.MODE_DISK);
         cacheService.putImageData(mPath, mTimeModified, mType, array);
         return bitmap;
     }
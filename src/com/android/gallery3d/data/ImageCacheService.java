@@ -20,13 +20,19 @@ import android.content.Context;
 
 import com.android.gallery3d.common.BlobCache;
 import com.android.gallery3d.common.BlobCache.LookupRequest;
+import com.android.gallery3d.common.ShardedBlobCache;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
 import com.android.gallery3d.util.CacheManager;
-import com.android.gallery3d.util.GalleryUtils;
+import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ImageCacheService {
     @SuppressWarnings("unused")
@@ -35,14 +41,104 @@ public class ImageCacheService {
     private static final String IMAGE_CACHE_FILE = "imgcache";
     private static final int IMAGE_CACHE_MAX_ENTRIES = 5000;
     private static final int IMAGE_CACHE_MAX_BYTES = 200 * 1024 * 1024;
-    private static final int IMAGE_CACHE_VERSION = 7;
+    private static final int IMAGE_CACHE_VERSION = 9;
+    // Each shard has its own lock, so decoder threads rarely wait for each
+    // other. Must not exceed CacheManager.IMGCACHE_MAX_SHARDS.
+    private static final int IMAGE_CACHE_SHARDS = 4;
+    // The share of the GalleryBitmapPool capacity used by mMemoryCache.
+    private static final int MEMORY_CACHE_POOL_DIVISOR = 4;
+    // Blobs copied forward per shard by one compaction job.
+    private static final int COMPACT_BATCH_SIZE = 32;
+    // Check whether compaction is needed once every this many lookups.
+    private static final int COMPACT_CHECK_INTERVAL = 32;
 
-    private BlobCache mCache;
+    // Each blob starts with a binary key which identifies the image:
+    // [0]  Path id, see Path.getCacheId()
+    // [8]  Time modified
+    // [16] Type
+    // [17] Image data, encoded by an ImageCacheFormat
+    private static final int KEY_SIZE = 17;
 
-    public ImageCacheService(Context context) {
-        mCache = CacheManager.getCache(context, IMAGE_CACHE_FILE,
-                IMAGE_CACHE_MAX_ENTRIES, IMAGE_CACHE_MAX_BYTES,
-                IMAGE_CACHE_VERSION);
+    private ShardedBlobCache mCache;
+    // Microthumbnails are stored as JPEG: stored raw they would be about ten
+    // times larger, and the cache would keep only a few hundred of them.
+    // Thumbnails are larger and used less often, so they are stored
+    // compressed with the denser codec.
+    private volatile ImageCacheFormat mMicroThumbnailFormat = ImageCacheFormat.JPEG;
+    private volatile ImageCacheFormat mThumbnailFormat = ImageCacheFormat.WEBP;
+    private final ThreadPool mThreadPool;
+    private final AtomicBoolean mCompactionScheduled = new AtomicBoolean();
+    private final AtomicInteger mLookupCount = new AtomicInteger();
+
+    private static final ThreadLocal<LookupRequest> sLookupRequest =
+            new ThreadLocal<LookupRequest>() {
+        @Override
+        protected LookupRequest initialValue() {
+            return new LookupRequest();
+        }
+    };
+
+    // Recently used microthumbnail blobs (key followed by image data), keyed
+    // by cache key. Also holds the blobs read by prefetchImageData().
+    private final ImageMemoryCache mMemoryCache = new ImageMemoryCache(
+            GalleryBitmapPool.getInstance().getCapacity() / MEMORY_CACHE_POOL_DIVISOR);
+
+    /**
+     * Identifies one image in the cache for the batch methods.
+     */
+    public static class ImageKey {
+        public final Path path;
+        public final long timeModified;
+        public final int type;
+
+        public ImageKey(Path path, long timeModified, int type) {
+            this.path = path;
+            this.timeModified = timeModified;
+            this.type = type;
+        }
+    }
+
+    public ImageCacheService(Context context, ThreadPool threadPool) {
+        mThreadPool = threadPool;
+        mCache = CacheManager.getShardedCache(context, IMAGE_CACHE_FILE,
+                IMAGE_CACHE_SHARDS, IMAGE_CACHE_MAX_ENTRIES,
+                IMAGE_CACHE_MAX_BYTES, IMAGE_CACHE_VERSION);
+        // Entries used from the inactive region are copied forward by
+        // CompactionJob, not by the lookups of the decoder threads.
+        mCache.setBackgroundCompaction(true);
+    }
+
+    /**
+     * Sets the format used to encode the images of the given type, to trade
+     * decoding time against disk space. The images already in the cache
+     * keep their format.
+     */
+    public void setImageFormat(int type, ImageCacheFormat format) {
+        if (type == MediaItem.TYPE_MICROTHUMBNAIL) {
+            mMicroThumbnailFormat = format;
+        } else if (type == MediaItem.TYPE_THUMBNAIL) {
+            mThumbnailFormat = format;
+        } else {
+            throw new IllegalArgumentException("invalid type: " + type);
+        }
+    }
+
+    /**
+     * Returns the format in which images of the given type should be put
+     * into the cache.
+     */
+    public ImageCacheFormat getImageFormat(int type) {
+        if (type == MediaItem.TYPE_MICROTHUMBNAIL) return mMicroThumbnailFormat;
+        if (type == MediaItem.TYPE_THUMBNAIL) return mThumbnailFormat;
+        return ImageCacheFormat.JPEG;
+    }
+
+    /**
+     * Returns the hit/miss, write, flip and lookup latency counters of the
+     * image cache since it was opened.
+     */
+    public BlobCache.Stats getCacheStats() {
+        return mCache.getStats();
     }
 
     /**
@@ -52,72 +148,309 @@ public class ImageCacheService {
      * The image data will be stored in <code>buffer.data</code>, started from
      * <code>buffer.offset</code> for <code>buffer.length</code> bytes. If the
      * buffer.data is not big enough, a new byte array will be allocated and returned.
+     * It can be decoded with ImageCacheFormat.decode().
      *
      * @return true if the image data is found; false if not found.
      */
     public boolean getImageData(Path path, long timeModified, int type, BytesBuffer buffer) {
-        byte[] key = makeKey(path, timeModified, type);
-        long cacheKey = Utils.crc64Long(key);
+        long pathId = path.getCacheId();
+        long cacheKey = makeCacheKey(pathId, timeModified, type);
+        byte[] blob = getFromMemory(cacheKey, pathId, timeModified, type);
+        if (blob != null) {
+            int length = blob.length - KEY_SIZE;
+            if (buffer.data == null || buffer.data.length < length) {
+                buffer.data = new byte[length];
+            }
+            System.arraycopy(blob, KEY_SIZE, buffer.data, 0, length);
+            buffer.offset = 0;
+            buffer.length = length;
+            return true;
+        }
+        LookupRequest request = sLookupRequest.get();
+        onLookup();
         try {
-            LookupRequest request = new LookupRequest();
             request.key = cacheKey;
             request.buffer = buffer.data;
-            synchronized (mCache) {
-                if (!mCache.lookup(request)) return false;
-            }
-            if (isSameKey(key, request.buffer)) {
+            if (!mCache.lookup(request)) return false;
+            if (isSameKey(pathId, timeModified, type,
+                    request.buffer, request.length)) {
+                if (isMemoryCached(type)) {
+                    mMemoryCache.put(cacheKey,
+                            Arrays.copyOf(request.buffer, request.length));
+                }
                 buffer.data = request.buffer;
-                buffer.offset = key.length;
-                buffer.length = request.length - buffer.offset;
+                buffer.offset = KEY_SIZE;
+                buffer.length = request.length - KEY_SIZE;
                 return true;
             }
         } catch (IOException ex) {
             // ignore.
+        } finally {
+            request.buffer = null;
         }
         return false;
     }
 
+    /**
+     * Gets the cached image data for the given <code>path</code>,
+     *  <code>timeModified</code> and <code>type</code> without copying it.
+     *
+     * The returned buffer is a read-only view of the memory mapped cache file,
+     * positioned at the image data. Its content may be overwritten once the
+     * cache is written again: the generation of the data is stored in
+     * generation[0], and whatever is read from the buffer must be discarded
+     * unless {@link #isMappedImageDataValid} returns true afterwards.
+     * Microthumbnails are copied into the in-memory cache instead, and the
+     * returned buffer wraps that copy: it is writable, so the pixels can be
+     * copied from its backing array, but must not be modified.
+     *
+     * @return the image data, or null if not found.
+     */
+    public ByteBuffer getMappedImageData(Path path, long timeModified, int type,
+            int[] generation) {
+        long pathId = path.getCacheId();
+        long cacheKey = makeCacheKey(pathId, timeModified, type);
+        byte[] blob = getFromMemory(cacheKey, pathId, timeModified, type);
+        if (blob != null) {
+            generation[0] = mCache.getGeneration(cacheKey);
+            return ByteBuffer.wrap(blob, KEY_SIZE, blob.length - KEY_SIZE);
+        }
+        onLookup();
+        try {
+            ByteBuffer data = mCache.lookupMapped(cacheKey, generation);
+            if (data != null && isSameKey(pathId, timeModified, type, data)) {
+                if (isMemoryCached(type)) {
+                    blob = new byte[data.remaining()];
+                    data.get(blob);
+                    mMemoryCache.put(cacheKey, blob);
+                    data = ByteBuffer.wrap(blob);
+                }
+                data.position(data.position() + KEY_SIZE);
+                return data;
+            }
+        } catch (IOException ex) {
+            // ignore.
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the data returned by {@link #getMappedImageData} for
+     * the same image, with the given generation, has not been overwritten
+     * since.
+     */
+    public boolean isMappedImageDataValid(Path path, long timeModified, int type,
+            int generation) {
+        long cacheKey = makeCacheKey(path.getCacheId(), timeModified, type);
+        return mCache.getGeneration(cacheKey) == generation;
+    }
+
+    /**
+     * Gets the cached image data for several images at once. The data files
+     * are read in storage order, which is much cheaper than looking up the
+     * images one by one when they were cached together (e.g. one page of an
+     * album).
+     *
+     * For each key, the result is stored in the corresponding buffer as in
+     * {@link #getImageData(Path, long, int, BytesBuffer)}.
+     *
+     * @return for each key, true if the image data is found.
+     */
+    public boolean[] getImageData(ImageKey[] keys, BytesBuffer[] buffers) {
+        int n = keys.length;
+        LookupRequest[] requests = new LookupRequest[n];
+        for (int i = 0; i < n; i++) {
+            requests[i] = new LookupRequest();
+            requests[i].key = makeCacheKey(keys[i]);
+            requests[i].buffer = buffers[i].data;
+        }
+
+        boolean[] found = new boolean[n];
+        try {
+            mCache.lookup(requests, found);
+        } catch (IOException ex) {
+            // ignore.
+        }
+        scheduleCompactionIfNeeded();
+
+        for (int i = 0; i < n; i++) {
+            if (!found[i]) continue;
+            if (isSameKey(keys[i], requests[i].buffer, requests[i].length)) {
+                BytesBuffer buffer = buffers[i];
+                buffer.data = requests[i].buffer;
+                buffer.offset = KEY_SIZE;
+                buffer.length = requests[i].length - KEY_SIZE;
+            } else {
+                found[i] = false;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads the cached image data for the given keys in one batch and keeps
+     * it in the in-memory cache, so the following getImageData() or
+     * getMappedImageData() calls for these keys do not touch the cache files.
+     * At most half of the in-memory cache is filled, so a prefetch does not
+     * evict the images it read itself, nor all of the recently used ones.
+     */
+    public void prefetchImageData(ImageKey[] keys) {
+        // Skip the images which are already in memory.
+        int n = 0;
+        ImageKey[] missing = new ImageKey[keys.length];
+        for (ImageKey key : keys) {
+            if (mMemoryCache.get(makeCacheKey(key)) == null) missing[n++] = key;
+        }
+        if (n == 0) return;
+        keys = missing;
+
+        LookupRequest[] requests = new LookupRequest[n];
+        for (int i = 0; i < n; i++) {
+            requests[i] = new LookupRequest();
+            requests[i].key = makeCacheKey(keys[i]);
+        }
+
+        boolean[] found = new boolean[n];
+        try {
+            mCache.lookup(requests, found);
+        } catch (IOException ex) {
+            // ignore.
+        }
+        scheduleCompactionIfNeeded();
+
+        int budget = mMemoryCache.getCapacity() / 2;
+        for (int i = 0; i < n; i++) {
+            // A newly allocated buffer has exactly the blob length.
+            if (found[i] && isSameKey(keys[i],
+                    requests[i].buffer, requests[i].length)) {
+                budget -= requests[i].length;
+                if (budget < 0) break;
+                mMemoryCache.put(requests[i].key, requests[i].buffer);
+            }
+        }
+    }
+
+    /**
+     * Drops the image data kept in memory. The on-disk cache is not affected.
+     */
+    public void clearMemoryCache() {
+        mMemoryCache.clear();
+    }
+
+    // Returns the blob for the given key from the in-memory cache, or null if
+    // it is not there.
+    private byte[] getFromMemory(long cacheKey, long pathId,
+            long timeModified, int type) {
+        byte[] blob = mMemoryCache.get(cacheKey);
+        return (blob != null && isSameKey(pathId, timeModified, type,
+                blob, blob.length)) ? blob : null;
+    }
+
+    // Only microthumbnails are kept in memory: they are small and are looked
+    // up again and again while browsing albums.
+    private static boolean isMemoryCached(int type) {
+        return type == MediaItem.TYPE_MICROTHUMBNAIL;
+    }
+
     public void putImageData(Path path, long timeModified, int type, byte[] value) {
-        byte[] key = makeKey(path, timeModified, type);
-        long cacheKey = Utils.crc64Long(key);
-        ByteBuffer buffer = ByteBuffer.allocate(key.length + value.length);
-        buffer.put(key);
+        long pathId = path.getCacheId();
+        long cacheKey = makeCacheKey(pathId, timeModified, type);
+        ByteBuffer buffer = ByteBuffer.allocate(KEY_SIZE + value.length);
+        buffer.putLong(pathId);
+        buffer.putLong(timeModified);
+        buffer.put((byte) type);
         buffer.put(value);
-        synchronized (mCache) {
-            try {
-                mCache.insert(cacheKey, buffer.array());
-            } catch (IOException ex) {
-                // ignore.
-            }
+        if (isMemoryCached(type)) mMemoryCache.put(cacheKey, buffer.array());
+        try {
+            mCache.insert(cacheKey, buffer.array());
+        } catch (IOException ex) {
+            // ignore.
         }
+        scheduleCompactionIfNeeded();
     }
 
     public void clearImageData(Path path, long timeModified, int type) {
-        byte[] key = makeKey(path, timeModified, type);
-        long cacheKey = Utils.crc64Long(key);
-        synchronized (mCache) {
-            try {
-                mCache.clearEntry(cacheKey);
-            } catch (IOException ex) {
-                // ignore.
-            }
+        long cacheKey = makeCacheKey(path.getCacheId(), timeModified, type);
+        mMemoryCache.remove(cacheKey);
+        try {
+            mCache.clearEntry(cacheKey);
+        } catch (IOException ex) {
+            // ignore.
         }
     }
 
-    private static byte[] makeKey(Path path, long timeModified, int type) {
-        return GalleryUtils.getBytes(path.toString() + "+" + timeModified + "+" + type);
+    private void onLookup() {
+        if (mLookupCount.incrementAndGet() % COMPACT_CHECK_INTERVAL == 0) {
+            scheduleCompactionIfNeeded();
+        }
     }
 
-    private static boolean isSameKey(byte[] key, byte[] buffer) {
-        int n = key.length;
-        if (buffer.length < n) {
-            return false;
+    private void scheduleCompactionIfNeeded() {
+        if (mThreadPool == null || !mCache.needsCompaction()) return;
+        if (mCompactionScheduled.compareAndSet(false, true)) {
+            // This is all file I/O, don't hold a CPU slot.
+            mThreadPool.submit(new CompactionJob(), null,
+                    ThreadPool.PRIORITY_BACKGROUND, ThreadPool.MODE_DISK);
         }
-        for (int i = 0; i < n; ++i) {
-            if (key[i] != buffer[i]) {
-                return false;
+    }
+
+    private class CompactionJob implements Job<Void> {
+        @Override
+        public Void run(JobContext jc) {
+            try {
+                mCache.compact(COMPACT_BATCH_SIZE);
+            } finally {
+                mCompactionScheduled.set(false);
             }
+            return null;
+        }
+    }
+
+    private static long makeCacheKey(ImageKey key) {
+        return makeCacheKey(key.path.getCacheId(), key.timeModified, key.type);
+    }
+
+    // Mixes the key fields into the 64-bit BlobCache key. All bits of the
+    // result depend on all the fields, since BlobCache hashes on the low bits
+    // and ShardedBlobCache picks the shard from the high bits.
+    private static long makeCacheKey(long pathId, long timeModified, int type) {
+        long h = pathId ^ (timeModified * 0x9E3779B97F4A7C15L) ^ type;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static boolean isSameKey(ImageKey key, byte[] buffer, int length) {
+        return isSameKey(key.path.getCacheId(), key.timeModified, key.type,
+                buffer, length);
+    }
+
+    private static boolean isSameKey(long pathId, long timeModified, int type,
+            byte[] buffer, int length) {
+        return length >= KEY_SIZE
+                && readLong(buffer, 0) == pathId
+                && readLong(buffer, 8) == timeModified
+                && buffer[16] == (byte) type;
+    }
+
+    private static boolean isSameKey(long pathId, long timeModified, int type,
+            ByteBuffer buffer) {
+        int start = buffer.position();
+        return buffer.remaining() >= KEY_SIZE
+                && buffer.getLong(start) == pathId
+                && buffer.getLong(start + 8) == timeModified
+                && buffer.get(start + 16) == (byte) type;
+    }
+
+    // Reads a big-endian long, the byte order used by ByteBuffer.
+    private static long readLong(byte[] buf, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (buf[offset + i] & 0xff);
         }
-        return true;
+        return result;
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory LRU cache of compressed image blobs, bounded by the total
+ * number of bytes it holds. It sits in front of the on-disk image cache so
+ * recently used thumbnails can be served without any file I/O.
+ *
+ * Only the compressed data is kept: the bitmaps decoded from it belong to
+ * the callers, which recycle them into the GalleryBitmapPool, so they cannot
+ * be shared through a cache. The budget is taken from the capacity of the
+ * GalleryBitmapPool, which is what the decoded bitmaps are drawn from.
+ */
+class ImageMemoryCache {
+    private final LinkedHashMap<Long, byte[]> mMap =
+            new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+    private final int mCapacityBytes;
+    private int mSizeBytes;
+
+    public ImageMemoryCache(int capacityBytes) {
+        mCapacityBytes = capacityBytes;
+    }
+
+    public synchronized byte[] get(long key) {
+        if (mMap.isEmpty()) return null;
+        return mMap.get(key);
+    }
+
+    public synchronized void put(long key, byte[] blob) {
+        if (blob.length > mCapacityBytes / 2) return;
+        byte[] old = mMap.put(key, blob);
+        if (old != null) mSizeBytes -= old.length;
+        mSizeBytes += blob.length;
+        trimToSize(mCapacityBytes);
+    }
+
+    public synchronized void remove(long key) {
+        byte[] old = mMap.remove(key);
+        if (old != null) mSizeBytes -= old.length;
+    }
+
+    public synchronized void clear() {
+        mMap.clear();
+        mSizeBytes = 0;
+    }
+
+    public int getCapacity() {
+        return mCapacityBytes;
+    }
+
+    public synchronized int getSize() {
+        return mSizeBytes;
+    }
+
+    // Evicts the least recently used blobs until the total size is at most
+    // maxBytes.
+    private void trimToSize(int maxBytes) {
+        Iterator<Map.Entry<Long, byte[]>> it = mMap.entrySet().iterator();
+        while (mSizeBytes > maxBytes && it.hasNext()) {
+            mSizeBytes -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+}
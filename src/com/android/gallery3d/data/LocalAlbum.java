@@ -41,6 +41,17 @@ import java.util.ArrayList;
 public class LocalAlbum extends MediaSet {
     private static final String TAG = "LocalAlbum";
     private static final String[] COUNT_PROJECTION = { "count(*)" };
+    // Same names for images and videos.
+    private static final String[] SNAPSHOT_PROJECTION = {
+            ImageColumns._ID, ImageColumns.DATE_MODIFIED };
+    // Beyond this, reloading the items is cheaper than patching them.
+    private static final int MAX_CHANGE_HUNKS = 64;
+    // The distance between two page anchors, see getMediaItem().
+    private static final int ANCHOR_INTERVAL = 64;
+    // See mapMediaItemsById(). Each range takes two of the at most 999
+    // arguments of a SQLite query.
+    private static final int MAX_RANGES_PER_QUERY = 200;
+    private static final int MAX_RANGE_GAP = 32;
 
     private static final int INVALID_COUNT = -1;
     private final String mWhereClause;
@@ -57,6 +68,44 @@ public class LocalAlbum extends MediaSet {
     private final Path mItemPath;
     private int mCachedCount = INVALID_COUNT;
 
+    // The (_id, date_modified) of the items, in order, as of mDataVersion.
+    // Only kept once getChangesSince() has been called: most albums are
+    // never shown, and LocalAlbumSet reloads them all.
+    private boolean mTrackChanges;
+    private int[] mSnapshotIds;
+    private long[] mSnapshotDates;
+    private int mSnapshotSize;
+    // The changes from mChangesFromVersion to mDataVersion.
+    private ChangeSet mChanges;
+    private long mChangesFromVersion = INVALID_DATA_VERSION;
+    // Cleared by reload() when the items change.
+    private volatile PageAnchors mAnchors;
+
+    // The count and the cover from the LocalMediaIndex, which stand for the
+    // first data version until they are checked against MediaStore. See
+    // setIndexedState().
+    private boolean mReloaded;
+    private boolean mIndexed;
+    private int mIndexedCount = INVALID_COUNT;
+    private volatile MediaItem mIndexedCover;
+
+    // The (_id, date_modified) of every ANCHOR_INTERVAL-th item: anchor k is
+    // the last item of the k-th interval, i.e. the item at index
+    // (k + 1) * ANCHOR_INTERVAL - 1.
+    private static class PageAnchors {
+        final long version;
+        final int count;
+        final int[] ids;
+        final long[] dates;
+
+        PageAnchors(long version, int count, int[] ids, long[] dates) {
+            this.version = version;
+            this.count = count;
+            this.ids = ids;
+            this.dates = dates;
+        }
+    }
+
     public LocalAlbum(Path path, GalleryApp application, int bucketId,
             boolean isImage, String name) {
         super(path, nextVersionNumber());
@@ -130,17 +179,36 @@ public class LocalAlbum extends MediaSet {
         }
     }
 
+    // A "limit start,count" query makes SQLite step over the first start rows,
+    // so the pages get slower towards the end of a large album. Instead, the
+    // query starts after the nearest page anchor before start, using the
+    // (date_modified, _id) order, and only skips less than ANCHOR_INTERVAL
+    // rows.
     @Override
     public ArrayList<MediaItem> getMediaItem(int start, int count) {
         DataManager dataManager = mApplication.getDataManager();
-        Uri uri = mBaseUri.buildUpon()
-                .appendQueryParameter("limit", start + "," + count).build();
         ArrayList<MediaItem> list = new ArrayList<MediaItem>();
         GalleryUtils.assertNotInRenderThread();
+
+        String whereClause = mWhereClause;
+        String[] whereArgs = new String[]{String.valueOf(mBucketId)};
+        int offset = start;
+        PageAnchors anchors = (start < ANCHOR_INTERVAL) ? null : getAnchors();
+        if (anchors != null && anchors.count > 0) {
+            int k = Math.min(start / ANCHOR_INTERVAL, anchors.count) - 1;
+            whereClause = mWhereClause + " AND (" + ImageColumns.DATE_MODIFIED
+                    + " < ? OR (" + ImageColumns.DATE_MODIFIED + " = ? AND "
+                    + ImageColumns._ID + " < ?))";
+            String date = String.valueOf(anchors.dates[k]);
+            whereArgs = new String[]{String.valueOf(mBucketId), date, date,
+                    String.valueOf(anchors.ids[k])};
+            offset = start - (k + 1) * ANCHOR_INTERVAL;
+        }
+
+        Uri uri = mBaseUri.buildUpon()
+                .appendQueryParameter("limit", offset + "," + count).build();
         Cursor cursor = mResolver.query(
-                uri, mProjection, mWhereClause,
-                new String[]{String.valueOf(mBucketId)},
-                mOrderClause);
+                uri, mProjection, whereClause, whereArgs, mOrderClause);
         if (cursor == null) {
             Log.w(TAG, "query fail: " + uri);
             return list;
@@ -160,9 +228,61 @@ public class LocalAlbum extends MediaSet {
         return list;
     }
 
+    // Returns the page anchors of the current data version, reading them if
+    // needed, or null if they cannot be read.
+    private PageAnchors getAnchors() {
+        long version = mDataVersion;
+        PageAnchors anchors = mAnchors;
+        if (anchors != null && anchors.version == version) return anchors;
+
+        Cursor cursor = mResolver.query(
+                mBaseUri, SNAPSHOT_PROJECTION, mWhereClause,
+                new String[]{String.valueOf(mBucketId)},
+                mOrderClause);
+        if (cursor == null) {
+            Log.w(TAG, "query fail: " + mBaseUri);
+            return null;
+        }
+        try {
+            int capacity = cursor.getCount() / ANCHOR_INTERVAL;
+            int[] ids = new int[capacity];
+            long[] dates = new long[capacity];
+            int n = 0;
+            while (n < capacity
+                    && cursor.moveToPosition((n + 1) * ANCHOR_INTERVAL - 1)) {
+                ids[n] = cursor.getInt(0);
+                dates[n] = cursor.getLong(1);
+                ++n;
+            }
+            anchors = new PageAnchors(version, n, ids, dates);
+        } finally {
+            cursor.close();
+        }
+        setAnchors(anchors);
+        return anchors;
+    }
+
+    // Keeps the anchors unless the items have changed meanwhile.
+    private synchronized void setAnchors(PageAnchors anchors) {
+        if (anchors.version == mDataVersion) mAnchors = anchors;
+    }
+
+    private static PageAnchors buildAnchors(long version, int[] ids,
+            long[] dates, int size) {
+        int n = size / ANCHOR_INTERVAL;
+        int[] anchorIds = new int[n];
+        long[] anchorDates = new long[n];
+        for (int k = 0; k < n; ++k) {
+            int i = (k + 1) * ANCHOR_INTERVAL - 1;
+            anchorIds[k] = ids[i];
+            anchorDates[k] = dates[i];
+        }
+        return new PageAnchors(version, n, anchorIds, anchorDates);
+    }
+
     private static MediaItem loadOrUpdateItem(Path path, Cursor cursor,
             DataManager dataManager, GalleryApp app, boolean isImage) {
-        synchronized (DataManager.LOCK) {
+        synchronized (DataManager.getLock(path)) {
             LocalMediaItem item = (LocalMediaItem) dataManager.peekMediaObject(path);
             if (item == null) {
                 if (isImage) {
@@ -239,6 +359,83 @@ public class LocalAlbum extends MediaSet {
         }
     }
 
+    // Reads the items with the ids, which are sorted in ascending order, and
+    // passes each of them to the consumer with the index of the same
+    // position (or null if there is no such item). The ids close to each
+    // other are read in one range, and up to MAX_RANGES_PER_QUERY ranges in
+    // one query, so there are few queries even if the ids are scattered.
+    static void mapMediaItemsById(GalleryApp application, boolean isImage,
+            int[] ids, int[] indexes, int count, ItemConsumer consumer) {
+        Uri baseUri;
+        String[] projection;
+        Path itemPath;
+        if (isImage) {
+            baseUri = Images.Media.EXTERNAL_CONTENT_URI;
+            projection = LocalImage.PROJECTION;
+            itemPath = LocalImage.ITEM_PATH;
+        } else {
+            baseUri = Video.Media.EXTERNAL_CONTENT_URI;
+            projection = LocalVideo.PROJECTION;
+            itemPath = LocalVideo.ITEM_PATH;
+        }
+        ContentResolver resolver = application.getContentResolver();
+        DataManager dataManager = application.getDataManager();
+
+        int i = 0;
+        while (i < count) {
+            StringBuilder where = new StringBuilder();
+            String[] args = new String[2 * MAX_RANGES_PER_QUERY];
+            int ranges = 0;
+            int end = i;
+            while (end < count && ranges < MAX_RANGES_PER_QUERY) {
+                int rangeEnd = end + 1;
+                while (rangeEnd < count
+                        && ids[rangeEnd] - ids[rangeEnd - 1] <= MAX_RANGE_GAP) {
+                    ++rangeEnd;
+                }
+                if (ranges > 0) where.append(" OR ");
+                where.append("_id BETWEEN ? AND ?");
+                args[2 * ranges] = String.valueOf(ids[end]);
+                args[2 * ranges + 1] = String.valueOf(ids[rangeEnd - 1]);
+                ++ranges;
+                end = rangeEnd;
+            }
+            if (ranges < MAX_RANGES_PER_QUERY) {
+                String[] used = new String[2 * ranges];
+                System.arraycopy(args, 0, used, 0, used.length);
+                args = used;
+            }
+
+            Cursor cursor = resolver.query(
+                    baseUri, projection, where.toString(), args, "_id");
+            if (cursor == null) {
+                Log.w(TAG, "query fail" + baseUri);
+            } else {
+                try {
+                    while (i < end && cursor.moveToNext()) {
+                        int id = cursor.getInt(0);  // _id must be in the first column
+                        while (i < end && ids[i] < id) {
+                            consumer.consume(indexes[i++], null);
+                        }
+                        if (i < end && ids[i] == id) {
+                            MediaItem item = loadOrUpdateItem(itemPath.getChild(id),
+                                    cursor, dataManager, application, isImage);
+                            // The same id may be asked for more than once.
+                            while (i < end && ids[i] == id) {
+                                consumer.consume(indexes[i++], item);
+                            }
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            while (i < end) {
+                consumer.consume(indexes[i++], null);
+            }
+        }
+    }
+
     public static Cursor getItemCursor(ContentResolver resolver, Uri uri,
             String[] projection, int id) {
         return resolver.query(uri, projection, "_id=?",
@@ -270,15 +467,112 @@ public class LocalAlbum extends MediaSet {
         return getLocalizedName(mApplication.getResources(), mBucketId, mName);
     }
 
+    // LocalAlbumSet reloads the album from its own thread.
     @Override
-    public long reload() {
+    public synchronized long reload() {
+        mReloaded = true;
         if (mNotifier.isDirty()) {
+            long oldVersion = mDataVersion;
             mDataVersion = nextVersionNumber();
-            mCachedCount = INVALID_COUNT;
+            // Only the first version can use the indexed count.
+            mCachedCount = mIndexedCount;
+            mIndexedCount = INVALID_COUNT;
+            if (mCachedCount == INVALID_COUNT) mIndexedCover = null;
+            mAnchors = null;
+            if (mTrackChanges) updateSnapshot(oldVersion);
         }
         return mDataVersion;
     }
 
+    // Sets the count and the cover saved in the LocalMediaIndex, so the album
+    // can be shown at launch without querying MediaStore. Ignored if the
+    // album has been loaded already.
+    synchronized void setIndexedState(int count, MediaItem cover) {
+        if (mReloaded) return;
+        mIndexed = true;
+        mIndexedCount = count;
+        mIndexedCover = cover;
+    }
+
+    // Checks the indexed state against the count and the cover read from
+    // MediaStore, and reloads the album if they don't match.
+    synchronized void reconcileIndexedState(int count, int coverId) {
+        if (!mIndexed) return;
+        mIndexed = false;
+        mIndexedCount = INVALID_COUNT;
+        MediaItem cover = mIndexedCover;
+        if (mCachedCount != count || cover == null
+                || cover.getPath() != mItemPath.getChild(coverId)) {
+            mIndexedCover = null;
+            mNotifier.fakeChange();
+        }
+    }
+
+    @Override
+    public MediaItem getCoverMediaItem() {
+        MediaItem cover = mIndexedCover;
+        return cover != null ? cover : super.getCoverMediaItem();
+    }
+
+    @Override
+    public synchronized ChangeSet getChangesSince(long fromVersion) {
+        // The snapshots start with the next reload.
+        mTrackChanges = true;
+        return fromVersion == mChangesFromVersion ? mChanges : null;
+    }
+
+    // Reads the (_id, date_modified) of all the items, which is much lighter
+    // than reading the items themselves, and compares them with the previous
+    // snapshot.
+    private void updateSnapshot(long oldVersion) {
+        int[] oldIds = mSnapshotIds;
+        long[] oldDates = mSnapshotDates;
+        int oldSize = mSnapshotSize;
+        mSnapshotIds = null;
+        mSnapshotDates = null;
+        mSnapshotSize = 0;
+        mChanges = null;
+        mChangesFromVersion = INVALID_DATA_VERSION;
+
+        GalleryUtils.assertNotInRenderThread();
+        Cursor cursor = mResolver.query(
+                mBaseUri, SNAPSHOT_PROJECTION, mWhereClause,
+                new String[]{String.valueOf(mBucketId)},
+                mOrderClause);
+        if (cursor == null) {
+            Log.w(TAG, "query fail: " + mBaseUri);
+            return;
+        }
+
+        int size = 0;
+        int[] ids;
+        long[] dates;
+        try {
+            int capacity = cursor.getCount();
+            ids = new int[capacity];
+            dates = new long[capacity];
+            while (size < capacity && cursor.moveToNext()) {
+                ids[size] = cursor.getInt(0);
+                dates[size] = cursor.getLong(1);
+                ++size;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        mSnapshotIds = ids;
+        mSnapshotDates = dates;
+        mSnapshotSize = size;
+        mCachedCount = size;
+        // The anchors come for free with the snapshot.
+        mAnchors = buildAnchors(mDataVersion, ids, dates, size);
+        if (oldIds != null) {
+            mChanges = ChangeSet.diff(mItemPath, oldIds, oldDates, oldSize,
+                    ids, dates, size, MAX_CHANGE_HUNKS);
+            mChangesFromVersion = oldVersion;
+        }
+    }
+
     @Override
     public int getSupportedOperations() {
         return SUPPORT_DELETE | SUPPORT_SHARE | SUPPORT_INFO;
@@ -32,6 +32,8 @@ import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
 
 // LocalAlbumSet lists all image or video albums in the local storage.
 // The path should be "/local/image", "local/video" or "/local/all"
@@ -56,7 +58,9 @@ public class LocalAlbumSet extends MediaSet
     private boolean mIsLoading;
 
     private Future<ArrayList<MediaSet>> mLoadTask;
+    private AlbumsLoader mLoader;
     private ArrayList<MediaSet> mLoadBuffer;
+    private BucketEntry[] mLoadEntries;
 
     public LocalAlbumSet(Path path, GalleryApp application) {
         super(path, nextVersionNumber());
@@ -99,9 +103,10 @@ public class LocalAlbumSet extends MediaSet
     }
 
     private class AlbumsLoader implements ThreadPool.Job<ArrayList<MediaSet>> {
+        // The entries of the returned albums, in the same order.
+        private volatile BucketEntry[] mEntries;
 
         @Override
-        @SuppressWarnings("unchecked")
         public ArrayList<MediaSet> run(JobContext jc) {
             // Note: it will be faster if we only select media_type and bucket_id.
             //       need to test the performance if that is worth
@@ -110,44 +115,130 @@ public class LocalAlbumSet extends MediaSet
 
             if (jc.isCancelled()) return null;
 
-            int offset = 0;
-            // Move camera screenshot and download bucket to the front, while keeping the
-            // order of others.
-            int index = findBucket(entries, MediaSetUtils.getCameraBucketId());
-            if (index != -1) {
-                circularShiftRight(entries, offset++, index);
-            }
-            index = findBucket(entries, MediaSetUtils.DOWNLOAD_BUCKET_ID);
-            if (index != -1) {
-                circularShiftRight(entries, offset++, index);
+            LocalMediaIndex.save(mApplication.getAndroidContext(), mType, entries);
+            ArrayList<MediaSet> albums = createAlbums(entries);
+            mEntries = entries;
+            return albums;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private ArrayList<MediaSet> createAlbums(BucketEntry[] entries) {
+        int offset = 0;
+        // Move camera screenshot and download bucket to the front, while keeping the
+        // order of others.
+        int index = findBucket(entries, MediaSetUtils.getCameraBucketId());
+        if (index != -1) {
+            circularShiftRight(entries, offset++, index);
+        }
+        index = findBucket(entries, MediaSetUtils.DOWNLOAD_BUCKET_ID);
+        if (index != -1) {
+            circularShiftRight(entries, offset++, index);
+        }
+        index = findBucket(entries, MediaSetUtils.MOVIES_BUCKET_ID);
+        if (index != -1) {
+            circularShiftRight(entries, offset++, index);
+        }
+        index = findBucket(entries, MediaSetUtils.PICTURES_BUCKET_ID);
+        if (index != -1) {
+            circularShiftRight(entries, offset++, index);
+        }
+        index = findBucket(entries, MediaSetUtils.SNAPSHOT_BUCKET_ID);
+        if (index != -1) {
+            circularShiftRight(entries, offset++, index);
+        }
+        ArrayList<MediaSet> albums = new ArrayList<MediaSet>();
+        DataManager dataManager = mApplication.getDataManager();
+        for (BucketEntry entry : entries) {
+            MediaSet album = getLocalAlbum(dataManager,
+                    mType, mPath, entry.bucketId, entry.bucketName);
+            albums.add(album);
+        }
+        return albums;
+    }
+
+    // Shows the albums saved in the LocalMediaIndex, with their counts and
+    // covers, until the AlbumsLoader is done. Then the albums are checked
+    // against the entries it read, see reconcileAlbums().
+    private void loadIndexedAlbums() {
+        BucketEntry[] entries = LocalMediaIndex.load(
+                mApplication.getAndroidContext(), mType);
+        if (entries == null) return;
+        ArrayList<MediaSet> albums = createAlbums(entries);
+
+        DataManager manager = mApplication.getDataManager();
+        HashMap<Integer, MediaItem> imageCovers = loadCovers(entries, true);
+        HashMap<Integer, MediaItem> videoCovers = loadCovers(entries, false);
+        for (BucketEntry entry : entries) {
+            LocalAlbum album = findLocalAlbum(manager, MEDIA_TYPE_IMAGE, entry.bucketId);
+            if (album != null && entry.imageCount != BucketHelper.UNKNOWN_COUNT) {
+                album.setIndexedState(entry.imageCount,
+                        imageCovers.get(entry.imageCoverId));
             }
-            index = findBucket(entries, MediaSetUtils.MOVIES_BUCKET_ID);
-            if (index != -1) {
-                circularShiftRight(entries, offset++, index);
+            album = findLocalAlbum(manager, MEDIA_TYPE_VIDEO, entry.bucketId);
+            if (album != null && entry.videoCount != BucketHelper.UNKNOWN_COUNT) {
+                album.setIndexedState(entry.videoCount,
+                        videoCovers.get(entry.videoCoverId));
             }
-            index = findBucket(entries, MediaSetUtils.PICTURES_BUCKET_ID);
-            if (index != -1) {
-                circularShiftRight(entries, offset++, index);
+        }
+
+        mAlbums = albums;
+        for (MediaSet album : mAlbums) {
+            album.reload();
+        }
+        mDataVersion = nextVersionNumber();
+    }
+
+    // Reads the cover items of all the albums in one query.
+    private HashMap<Integer, MediaItem> loadCovers(BucketEntry[] entries,
+            boolean isImage) {
+        HashMap<Integer, MediaItem> covers = new HashMap<Integer, MediaItem>();
+        if ((mType & (isImage ? MEDIA_TYPE_IMAGE : MEDIA_TYPE_VIDEO)) == 0) {
+            return covers;
+        }
+        TreeSet<Integer> idSet = new TreeSet<Integer>();
+        for (BucketEntry entry : entries) {
+            if (isImage ? entry.imageCount > 0 : entry.videoCount > 0) {
+                idSet.add(isImage ? entry.imageCoverId : entry.videoCoverId);
             }
-            index = findBucket(entries, MediaSetUtils.SNAPSHOT_BUCKET_ID);
-            if (index != -1) {
-                circularShiftRight(entries, offset++, index);
+        }
+        ArrayList<Integer> ids = new ArrayList<Integer>(idSet);
+        MediaItem[] items = LocalAlbum.getMediaItemById(mApplication, isImage, ids);
+        for (int i = 0, n = ids.size(); i < n; ++i) {
+            if (items[i] != null) covers.put(ids.get(i), items[i]);
+        }
+        return covers;
+    }
+
+    // Lets the albums shown from the LocalMediaIndex reload if their counts
+    // or covers were out of date.
+    private void reconcileAlbums(BucketEntry[] entries) {
+        DataManager manager = mApplication.getDataManager();
+        for (BucketEntry entry : entries) {
+            LocalAlbum album = findLocalAlbum(manager, MEDIA_TYPE_IMAGE, entry.bucketId);
+            if (album != null && entry.imageCount != BucketHelper.UNKNOWN_COUNT) {
+                album.reconcileIndexedState(entry.imageCount, entry.imageCoverId);
             }
-            ArrayList<MediaSet> albums = new ArrayList<MediaSet>();
-            DataManager dataManager = mApplication.getDataManager();
-            for (BucketEntry entry : entries) {
-                MediaSet album = getLocalAlbum(dataManager,
-                        mType, mPath, entry.bucketId, entry.bucketName);
-                albums.add(album);
+            album = findLocalAlbum(manager, MEDIA_TYPE_VIDEO, entry.bucketId);
+            if (album != null && entry.videoCount != BucketHelper.UNKNOWN_COUNT) {
+                album.reconcileIndexedState(entry.videoCount, entry.videoCoverId);
             }
-            return albums;
         }
     }
 
+    // Returns the LocalAlbum of the bucket for the media type, either shown
+    // by itself or as part of a LocalMergeAlbum.
+    private LocalAlbum findLocalAlbum(DataManager manager, int type, int bucketId) {
+        if ((mType & type) == 0) return null;
+        Path parent = (type == MEDIA_TYPE_IMAGE) ? PATH_IMAGE : PATH_VIDEO;
+        MediaObject object = manager.peekMediaObject(parent.getChild(bucketId));
+        return (object instanceof LocalAlbum) ? (LocalAlbum) object : null;
+    }
+
     private MediaSet getLocalAlbum(
             DataManager manager, int type, Path parent, int id, String name) {
-        synchronized (DataManager.LOCK) {
-            Path path = parent.getChild(id);
+        Path path = parent.getChild(id);
+        synchronized (DataManager.getLock(path)) {
             MediaObject object = manager.peekMediaObject(path);
             if (object != null) return (MediaSet) object;
             switch (type) {
@@ -176,13 +267,23 @@ public class LocalAlbumSet extends MediaSet
     //   2. Prevent calling onFutureDone() and reload() concurrently
     public synchronized long reload() {
         if (mNotifier.isDirty()) {
-            if (mLoadTask != null) mLoadTask.cancel();
+            if (mLoadTask != null) {
+                mLoadTask.cancel();
+            } else {
+                // The first load: show the last known albums meanwhile.
+                loadIndexedAlbums();
+            }
             mIsLoading = true;
-            mLoadTask = mApplication.getThreadPool().submit(new AlbumsLoader(), this);
+            mLoader = new AlbumsLoader();
+            mLoadTask = mApplication.getThreadPool().submit(mLoader, this);
         }
         if (mLoadBuffer != null) {
             mAlbums = mLoadBuffer;
             mLoadBuffer = null;
+            if (mLoadEntries != null) {
+                reconcileAlbums(mLoadEntries);
+                mLoadEntries = null;
+            }
             for (MediaSet album : mAlbums) {
                 album.reload();
             }
@@ -195,6 +296,7 @@ public class LocalAlbumSet extends MediaSet
     public synchronized void onFutureDone(Future<ArrayList<MediaSet>> future) {
         if (mLoadTask != future) return; // ignore, wait for the latest task
         mLoadBuffer = future.get();
+        mLoadEntries = mLoader.mEntries;
         mIsLoading = false;
         if (mLoadBuffer == null) mLoadBuffer = new ArrayList<MediaSet>();
         mHandler.post(new Runnable() {
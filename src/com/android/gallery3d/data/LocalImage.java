@@ -38,6 +38,7 @@ import com.android.gallery3d.exif.ExifInterface;
 import com.android.gallery3d.exif.ExifTag;
 import com.android.gallery3d.filtershow.tools.SaveImage;
 import com.android.gallery3d.util.GalleryUtils;
+import com.android.gallery3d.util.ThreadPool;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 import com.android.gallery3d.util.UpdateHelper;
@@ -194,6 +195,8 @@ public class LocalImage extends LocalMediaItem {
             if (type == MediaItem.TYPE_MICROTHUMBNAIL) {
                 ExifInterface exif = new ExifInterface();
                 byte[] thumbData = null;
+                // Reading the EXIF header is disk I/O.
+                if (!jc.setMode(ThreadPool.MODE_DISK)) return null;
                 try {
                     exif.readExif(mLocalFilePath);
                     thumbData = exif.getThumbnail();
@@ -202,6 +205,7 @@ public class LocalImage extends LocalMediaItem {
                 } catch (IOException e) {
                     //Log.w(TAG, "failed to get thumbnail from: " + mLocalFilePath);
                 }
+                if (!jc.setMode(ThreadPool.MODE_CPU)) return null;
                 if (thumbData != null) {
                     Bitmap bitmap = DecodeUtils.decodeIfBigEnough(
                             jc, thumbData, options, targetSize);
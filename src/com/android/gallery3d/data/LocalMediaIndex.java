@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.gallery3d.common.BlobCache;
+import com.android.gallery3d.data.BucketHelper.BucketEntry;
+import com.android.gallery3d.util.CacheManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// A persistent copy of the bucket entries last loaded by LocalAlbumSet, one
+// list per media type. At launch LocalAlbumSet shows the albums from here
+// while it loads the bucket entries from MediaStore again.
+//
+// The BlobCache is not thread-safe, and the albums of the different media
+// types are loaded in parallel, so every access is synchronized on it.
+class LocalMediaIndex {
+    private static final String TAG = "LocalMediaIndex";
+
+    private static final String INDEX_FILE = "local_index";
+    private static final int INDEX_MAX_ENTRIES = 16;
+    private static final int INDEX_MAX_BYTES = 512 * 1024;
+    private static final int INDEX_VERSION = 0;
+
+    // Returns the entries saved for the media type, or null if there are none.
+    public static BucketEntry[] load(Context context, int type) {
+        BlobCache cache = getCache(context);
+        if (cache == null) return null;
+        try {
+            byte[] data;
+            synchronized (cache) {
+                data = cache.lookup(type);
+            }
+            if (data == null) return null;
+            return readEntries(data);
+        } catch (IOException e) {
+            Log.w(TAG, "cannot read index", e);
+            return null;
+        }
+    }
+
+    public static void save(Context context, int type, BucketEntry[] entries) {
+        BlobCache cache = getCache(context);
+        if (cache == null) return;
+        try {
+            byte[] data = writeEntries(entries);
+            synchronized (cache) {
+                cache.insert(type, data);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "cannot write index", e);
+        }
+    }
+
+    private static BlobCache getCache(Context context) {
+        return CacheManager.getCache(context, INDEX_FILE,
+                INDEX_MAX_ENTRIES, INDEX_MAX_BYTES, INDEX_VERSION);
+    }
+
+    private static byte[] writeEntries(BucketEntry[] entries) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(entries.length);
+        for (BucketEntry entry : entries) {
+            dos.writeInt(entry.bucketId);
+            dos.writeUTF(entry.bucketName);
+            dos.writeInt(entry.dateTaken);
+            dos.writeInt(entry.imageCount);
+            dos.writeInt(entry.imageCoverId);
+            dos.writeLong(entry.imageDate);
+            dos.writeInt(entry.videoCount);
+            dos.writeInt(entry.videoCoverId);
+            dos.writeLong(entry.videoDate);
+        }
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    private static BucketEntry[] readEntries(byte[] data) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        int n = dis.readInt();
+        if (n < 0) throw new IOException("bad entry count: " + n);
+        BucketEntry[] entries = new BucketEntry[n];
+        for (int i = 0; i < n; ++i) {
+            BucketEntry entry = new BucketEntry(dis.readInt(), dis.readUTF());
+            entry.dateTaken = dis.readInt();
+            entry.imageCount = dis.readInt();
+            entry.imageCoverId = dis.readInt();
+            entry.imageDate = dis.readLong();
+            entry.videoCount = dis.readInt();
+            entry.videoCoverId = dis.readInt();
+            entry.videoDate = dis.readLong();
+            entries[i] = entry;
+        }
+        return entries;
+    }
+}
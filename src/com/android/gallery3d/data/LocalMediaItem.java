@@ -62,6 +62,11 @@ public abstract class LocalMediaItem extends MediaItem {
         return dateModifiedInSec * 1000;
     }
 
+    @Override
+    public ImageCacheService.ImageKey getImageCacheKey(int type) {
+        return new ImageCacheService.ImageKey(getPath(), dateModifiedInSec, type);
+    }
+
     @Override
     public String getName() {
         return caption;
@@ -21,12 +21,10 @@ import android.provider.MediaStore;
 
 import com.android.gallery3d.common.ApiHelper;
 
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.NoSuchElementException;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 // MergeAlbum merges items from two or more MediaSets. It uses a Comparator to
 // determine the order of items. The items are assumed to be sorted in the input
@@ -37,6 +35,10 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
     @SuppressWarnings("unused")
     private static final String TAG = "LocalMergeAlbum";
     private static final int PAGE_SIZE = 64;
+    // The number of pages of source items kept in memory, shared by the
+    // sources.
+    private static final int PAGE_CACHE_BUDGET = 16;
+    private static final int INITIAL_MARK_CAPACITY = 16;
 
     private final Comparator<MediaItem> mComparator;
     private final MediaSet[] mSources;
@@ -45,8 +47,12 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
     private int mSupportedOperation;
     private int mBucketId;
 
-    // mIndex maps global position to the position of each underlying media sets.
-    private TreeMap<Integer, int[]> mIndex = new TreeMap<Integer, int[]>();
+    // The merge state at every PAGE_SIZE-th position: mMarks[k * n + j] is
+    // the position in the j-th of the n media sets after the first
+    // k * PAGE_SIZE merged items. The marks are recorded as the merge goes
+    // forward from the previous one, so there is no gap between them.
+    private int[] mMarks;
+    private int mMarkCount;
 
     public LocalMergeAlbum(
             Path path, Comparator<MediaItem> comparator, MediaSet[] sources, int bucketId) {
@@ -109,21 +115,37 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
         ArrayList<MediaSet> matches = new ArrayList<MediaSet>();
         int supported = mSources.length == 0 ? 0 : MediaItem.SUPPORT_ALL;
         mFetcher = new FetchCache[mSources.length];
+        int maxPages = Math.max(2, PAGE_CACHE_BUDGET / Math.max(1, mSources.length));
         for (int i = 0, n = mSources.length; i < n; ++i) {
-            mFetcher[i] = new FetchCache(mSources[i]);
+            mFetcher[i] = new FetchCache(mSources[i], maxPages);
             supported &= mSources[i].getSupportedOperations();
         }
         mSupportedOperation = supported;
-        mIndex.clear();
-        mIndex.put(0, new int[mSources.length]);
+        resetMarks();
     }
 
     private void invalidateCache() {
         for (int i = 0, n = mSources.length; i < n; i++) {
             mFetcher[i].invalidate();
         }
-        mIndex.clear();
-        mIndex.put(0, new int[mSources.length]);
+        resetMarks();
+    }
+
+    private void resetMarks() {
+        // The first mark is all zeros.
+        mMarks = new int[INITIAL_MARK_CAPACITY * mSources.length];
+        mMarkCount = 1;
+    }
+
+    private void addMark(int[] subPos) {
+        int n = subPos.length;
+        if ((mMarkCount + 1) * n > mMarks.length) {
+            int[] marks = new int[mMarks.length * 2];
+            System.arraycopy(mMarks, 0, marks, 0, mMarkCount * n);
+            mMarks = marks;
+        }
+        System.arraycopy(subPos, 0, mMarks, mMarkCount * n, n);
+        ++mMarkCount;
     }
 
     @Override
@@ -154,51 +176,98 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
 
     @Override
     public ArrayList<MediaItem> getMediaItem(int start, int count) {
-
-        // First find the nearest mark position <= start.
-        SortedMap<Integer, int[]> head = mIndex.headMap(start + 1);
-        int markPos = head.lastKey();
-        int[] subPos = head.get(markPos).clone();
-        MediaItem[] slot = new MediaItem[mSources.length];
-
         int size = mSources.length;
 
-        // fill all slots
+        // First find the nearest mark position <= start.
+        int mark = Math.min(start / PAGE_SIZE, mMarkCount - 1);
+        int markPos = mark * PAGE_SIZE;
+        int[] subPos = new int[size];
+        System.arraycopy(mMarks, mark * size, subPos, 0, size);
+
+        // The sources which are not exhausted, in a heap ordered by their
+        // next item.
+        MediaItem[] slot = new MediaItem[size];
+        int[] heap = new int[size];
+        int heapSize = 0;
         for (int i = 0; i < size; i++) {
             slot[i] = mFetcher[i].getItem(subPos[i]);
+            if (slot[i] != null) {
+                heap[heapSize] = i;
+                siftUp(heap, heapSize++, slot);
+            }
         }
 
         ArrayList<MediaItem> result = new ArrayList<MediaItem>();
 
-        for (int i = markPos; i < start + count; i++) {
-            int k = -1;  // k points to the best slot up to now.
-            for (int j = 0; j < size; j++) {
-                if (slot[j] != null) {
-                    if (k == -1 || mComparator.compare(slot[j], slot[k]) < 0) {
-                        k = j;
-                    }
-                }
-            }
-
-            // If we don't have anything, all streams are exhausted.
-            if (k == -1) break;
-
+        for (int i = markPos; i < start + count && heapSize > 0; i++) {
             // Pick the best slot and refill it.
+            int k = heap[0];
             subPos[k]++;
             if (i >= start) {
                 result.add(slot[k]);
             }
             slot[k] = mFetcher[k].getItem(subPos[k]);
+            if (slot[k] == null) heap[0] = heap[--heapSize];
+            siftDown(heap, heapSize, slot);
 
-            // Periodically leave a mark in the index, so we can come back later.
-            if ((i + 1) % PAGE_SIZE == 0) {
-                mIndex.put(i + 1, subPos.clone());
-            }
+            // Periodically leave a mark, so we can come back later.
+            if ((i + 1) == mMarkCount * PAGE_SIZE) addMark(subPos);
         }
 
         return result;
     }
 
+    // Whether the next item of source a comes before the one of source b.
+    // On a tie, the first source wins.
+    private boolean isBefore(MediaItem[] slot, int a, int b) {
+        int result = mComparator.compare(slot[a], slot[b]);
+        return result < 0 || (result == 0 && a < b);
+    }
+
+    private void siftUp(int[] heap, int pos, MediaItem[] slot) {
+        int source = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >> 1;
+            if (!isBefore(slot, source, heap[parent])) break;
+            heap[pos] = heap[parent];
+            pos = parent;
+        }
+        heap[pos] = source;
+    }
+
+    private void siftDown(int[] heap, int heapSize, MediaItem[] slot) {
+        if (heapSize == 0) return;
+        int source = heap[0];
+        int pos = 0;
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && isBefore(slot, heap[child + 1], heap[child])) {
+                ++child;
+            }
+            if (!isBefore(slot, heap[child], source)) break;
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = source;
+    }
+
+    // The first item of the merge is the first of the source covers. This
+    // lets the sources use their own cover (see LocalAlbum) instead of going
+    // through the fetchers.
+    @Override
+    public MediaItem getCoverMediaItem() {
+        MediaItem cover = null;
+        for (MediaSet set : mSources) {
+            MediaItem item = set.getCoverMediaItem();
+            if (item != null && (cover == null
+                    || mComparator.compare(item, cover) < 0)) {
+                cover = item;
+            }
+        }
+        return cover;
+    }
+
     @Override
     public int getTotalMediaItemCount() {
         int count = 0;
@@ -246,43 +315,38 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
         }
     }
 
+    // Keeps the most recently used pages of a media set. The pages start at
+    // multiples of PAGE_SIZE, so the merges from nearby marks share them.
     private static class FetchCache {
-        private MediaSet mBaseSet;
-        private SoftReference<ArrayList<MediaItem>> mCacheRef;
-        private int mStartPos;
+        private final MediaSet mBaseSet;
+        private final LinkedHashMap<Integer, ArrayList<MediaItem>> mPages;
 
-        public FetchCache(MediaSet baseSet) {
+        @SuppressWarnings("serial")
+        public FetchCache(MediaSet baseSet, final int maxPages) {
             mBaseSet = baseSet;
+            mPages = new LinkedHashMap<Integer, ArrayList<MediaItem>>(
+                    16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Integer, ArrayList<MediaItem>> eldest) {
+                    return size() > maxPages;
+                }
+            };
         }
 
         public void invalidate() {
-            mCacheRef = null;
+            mPages.clear();
         }
 
         public MediaItem getItem(int index) {
-            boolean needLoading = false;
-            ArrayList<MediaItem> cache = null;
-            if (mCacheRef == null
-                    || index < mStartPos || index >= mStartPos + PAGE_SIZE) {
-                needLoading = true;
-            } else {
-                cache = mCacheRef.get();
-                if (cache == null) {
-                    needLoading = true;
-                }
+            int pageStart = index - index % PAGE_SIZE;
+            ArrayList<MediaItem> page = mPages.get(pageStart);
+            if (page == null) {
+                page = mBaseSet.getMediaItem(pageStart, PAGE_SIZE);
+                mPages.put(pageStart, page);
             }
-
-            if (needLoading) {
-                cache = mBaseSet.getMediaItem(index, PAGE_SIZE);
-                mCacheRef = new SoftReference<ArrayList<MediaItem>>(cache);
-                mStartPos = index;
-            }
-
-            if (index < mStartPos || index >= mStartPos + cache.size()) {
-                return null;
-            }
-
-            return cache.get(index - mStartPos);
+            int offset = index - pageStart;
+            return offset < page.size() ? page.get(offset) : null;
         }
     }
 
@@ -27,7 +27,7 @@ import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.data.MediaSet.ItemConsumer;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
 
 class LocalSource extends MediaSource {
@@ -38,7 +38,6 @@ class LocalSource extends MediaSource {
     private PathMatcher mMatcher;
     private static final int NO_MATCH = -1;
     private final UriMatcher mUriMatcher = new UriMatcher(NO_MATCH);
-    public static final Comparator<PathId> sIdComparator = new IdComparator();
 
     private static final int LOCAL_IMAGE_ALBUMSET = 0;
     private static final int LOCAL_VIDEO_ALBUMSET = 1;
@@ -209,56 +208,29 @@ class LocalSource extends MediaSource {
         processMapMediaItems(videoList, consumer, false);
     }
 
+    // Reads the items by id ranges, in the order of their ids. The items
+    // already in memory are read as well: they are updated from the cursor,
+    // and an item deleted from MediaStore is passed as null even if its
+    // object is still around.
     private void processMapMediaItems(ArrayList<PathId> list,
             ItemConsumer consumer, boolean isImage) {
-        // Sort path by path id
-        Collections.sort(list, sIdComparator);
+        // Sort the paths by id, with a key of (id, position in the list).
         int n = list.size();
-        for (int i = 0; i < n; ) {
-            PathId pid = list.get(i);
-
-            // Find a range of items.
-            ArrayList<Integer> ids = new ArrayList<Integer>();
-            int startId = Integer.parseInt(pid.path.getSuffix());
-            ids.add(startId);
-
-            int j;
-            for (j = i + 1; j < n; j++) {
-                PathId pid2 = list.get(j);
-                int curId = Integer.parseInt(pid2.path.getSuffix());
-                if (curId - startId >= MediaSet.MEDIAITEM_BATCH_FETCH_COUNT) {
-                    break;
-                }
-                ids.add(curId);
-            }
-
-            MediaItem[] items = LocalAlbum.getMediaItemById(
-                    mApplication, isImage, ids);
-            for(int k = i ; k < j; k++) {
-                PathId pid2 = list.get(k);
-                consumer.consume(pid2.id, items[k - i]);
-            }
-
-            i = j;
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            int id = Integer.parseInt(list.get(i).path.getSuffix());
+            keys[i] = ((long) id << 32) | i;
         }
-    }
+        Arrays.sort(keys);
 
-    // This is a comparator which compares the suffix number in two Paths.
-    private static class IdComparator implements Comparator<PathId> {
-        @Override
-        public int compare(PathId p1, PathId p2) {
-            String s1 = p1.path.getSuffix();
-            String s2 = p2.path.getSuffix();
-            int len1 = s1.length();
-            int len2 = s2.length();
-            if (len1 < len2) {
-                return -1;
-            } else if (len1 > len2) {
-                return 1;
-            } else {
-                return s1.compareTo(s2);
-            }
+        int[] ids = new int[n];
+        int[] indexes = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = (int) (keys[i] >>> 32);
+            indexes[i] = list.get((int) keys[i]).id;
         }
+        LocalAlbum.mapMediaItemsById(
+                mApplication, isImage, ids, indexes, n, consumer);
     }
 
     @Override
@@ -22,10 +22,23 @@ import android.os.Looper;
 import android.widget.Toast;
 
 import com.android.gallery3d.R;
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.LocationIndex.Cell;
+import com.android.gallery3d.data.LocationIndex.Entry;
 import com.android.gallery3d.util.GalleryUtils;
 import com.android.gallery3d.util.ReverseGeocoder;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 class LocationClustering extends Clustering {
     @SuppressWarnings("unused")
@@ -39,25 +52,34 @@ class LocationClustering extends Clustering {
     private static final float STOP_CHANGE_RATIO = 0.01f;
     // treat location within that distance (n meters) as beeing the same
     private static final int GROUP_LOCATION_DISTANCE_MAX = 500;
+    // The assignment step is split in chunks of this many points.
+    private static final int ASSIGN_CHUNK_SIZE = 2048;
+
+    private static ForkJoinPool sPool;
     private Context mContext;
-    private ArrayList<ArrayList<SmallItem>> mClusters;
+    private ArrayList<ArrayList<Entry>> mClusters;
     private ArrayList<String> mNames;
     private String mNoLocationString;
     private Handler mHandler;
-
-    private static class Point {
-        public Point(double lat, double lng) {
-            latRad = Math.toRadians(lat);
-            lngRad = Math.toRadians(lng);
+    // The locations of the items, kept for update().
+    private final LocationIndex mIndex = new LocationIndex();
+    // The names of the clusters of the last run() or update(), keyed by the
+    // cells of the extreme points they were computed from (see getNameKey()),
+    // and the locale they were computed in.
+    private HashMap<String, String> mNameCache = new HashMap<String, String>();
+    // The name keys the geocoder failed to resolve since the last run(), so
+    // update() does not ask again for them.
+    private final HashSet<String> mUnresolvedKeys = new HashSet<String>();
+    private Locale mNameLocale;
+    // Whether the no_connectivity toast was shown since the last run().
+    private boolean mNoConnectivityShown;
+
+    private static final Comparator<Entry> sDateComparator = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry item1, Entry item2) {
+            return -Utils.compare(item1.dateInMs, item2.dateInMs);
         }
-        public Point() {}
-        public double latRad, lngRad;
-    }
-
-    private static class SmallItem {
-        Path path;
-        double lat, lng;
-    }
+    };
 
     public LocationClustering(Context context) {
         mContext = context;
@@ -67,63 +89,108 @@ class LocationClustering extends Clustering {
 
     @Override
     public void run(MediaSet baseSet) {
-        final int total = baseSet.getTotalMediaItemCount();
-        final SmallItem[] buf = new SmallItem[total];
-        // Separate items to two sets: with or without lat-long.
-        final double[] latLong = new double[2];
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
-            @Override
-            public void consume(int index, MediaItem item) {
-                if (index < 0 || index >= total) return;
-                SmallItem s = new SmallItem();
-                s.path = item.getPath();
-                item.getLatLong(latLong);
-                s.lat = latLong[0];
-                s.lng = latLong[1];
-                buf[index] = s;
-            }
-        });
+        mUnresolvedKeys.clear();
+        mNoConnectivityShown = false;
+        mIndex.update(baseSet);
+        cluster();
+    }
 
-        final ArrayList<SmallItem> withLatLong = new ArrayList<SmallItem>();
-        final ArrayList<SmallItem> withoutLatLong = new ArrayList<SmallItem>();
-        final ArrayList<Point> points = new ArrayList<Point>();
-        for (int i = 0; i < total; i++) {
-            SmallItem s = buf[i];
-            if (s == null) continue;
-            if (GalleryUtils.isValidLocation(s.lat, s.lng)) {
-                withLatLong.add(s);
-                points.add(new Point(s.lat, s.lng));
+    // Moves the items added, removed or changed since the last run() or
+    // update() in the index. If items were only removed, they are dropped
+    // from their clusters, which keep their names. Otherwise the cells are
+    // grouped again: the clusters whose extreme points stay in the same
+    // cells keep their names, and the geocoder is only asked for the new
+    // ones which it did not fail to resolve before.
+    @Override
+    public boolean update(MediaSet baseSet) {
+        switch (mIndex.update(baseSet)) {
+            case LocationIndex.ADDED:
+                cluster();
+                break;
+            case LocationIndex.REMOVED:
+                removeDeletedEntries();
+                break;
+        }
+        return true;
+    }
+
+    // Drops the entries which are no longer in the index, and the clusters
+    // left empty.
+    private void removeDeletedEntries() {
+        for (int i = mClusters.size() - 1; i >= 0; i--) {
+            ArrayList<Entry> cluster = mClusters.get(i);
+            ArrayList<Entry> kept = new ArrayList<Entry>(cluster.size());
+            for (int j = 0, n = cluster.size(); j < n; j++) {
+                Entry e = cluster.get(j);
+                if (mIndex.contains(e)) kept.add(e);
+            }
+            if (kept.isEmpty()) {
+                mClusters.remove(i);
+                mNames.remove(i);
             } else {
-                withoutLatLong.add(s);
+                mClusters.set(i, kept);
             }
         }
+    }
 
-        ArrayList<ArrayList<SmallItem>> clusters = new ArrayList<ArrayList<SmallItem>>();
+    // Groups the cells of the index with k-means, each cell being a point at
+    // the centroid of its items, weighted by their number. Items in the same
+    // cell are always in the same cluster.
+    private void cluster() {
+        Collection<Cell> cellSet = mIndex.getCells();
+        int m = cellSet.size();
+        Cell[] cells = cellSet.toArray(new Cell[m]);
+        final ArrayList<Entry> withoutLatLong =
+                new ArrayList<Entry>(mIndex.getNoLocationEntries());
+
+        ArrayList<ArrayList<Entry>> clusters = new ArrayList<ArrayList<Entry>>();
 
-        int m = withLatLong.size();
         if (m > 0) {
-            // cluster the items with lat-long
-            Point[] pointsArray = new Point[m];
-            pointsArray = points.toArray(pointsArray);
+            // cluster the cells with lat-long
+            double[] latRad = new double[m];
+            double[] lngRad = new double[m];
+            int[] weight = new int[m];
+            for (int i = 0; i < m; i++) {
+                Cell cell = cells[i];
+                weight[i] = cell.size();
+                latRad[i] = cell.sumLatRad / weight[i];
+                lngRad[i] = cell.sumLngRad / weight[i];
+            }
             int[] bestK = new int[1];
-            int[] index = kMeans(pointsArray, bestK);
+            int[] index = kMeans(latRad, lngRad, weight, bestK);
 
             for (int i = 0; i < bestK[0]; i++) {
-                clusters.add(new ArrayList<SmallItem>());
+                clusters.add(new ArrayList<Entry>());
             }
 
             for (int i = 0; i < m; i++) {
-                clusters.get(index[i]).add(withLatLong.get(i));
+                clusters.get(index[i]).addAll(cells[i].entries);
             }
         }
 
-        ReverseGeocoder geocoder = new ReverseGeocoder(mContext);
+        Locale locale = Locale.getDefault();
+        HashMap<String, String> oldNames = mNameCache;
+        if (!locale.equals(mNameLocale)) {
+            oldNames = new HashMap<String, String>();
+            mUnresolvedKeys.clear();
+        }
+        HashMap<String, String> names = new HashMap<String, String>();
+        ReverseGeocoder geocoder = null;
         mNames = new ArrayList<String>();
         boolean hasUnresolvedAddress = false;
-        mClusters = new ArrayList<ArrayList<SmallItem>>();
-        for (ArrayList<SmallItem> cluster : clusters) {
-            String name = generateName(cluster, geocoder);
+        mClusters = new ArrayList<ArrayList<Entry>>();
+        for (ArrayList<Entry> cluster : clusters) {
+            ReverseGeocoder.SetLatLong set = getSetLatLong(cluster);
+            String key = getNameKey(set);
+            String name = oldNames.get(key);
+            if (name == null && !mUnresolvedKeys.contains(key)) {
+                if (geocoder == null) geocoder = new ReverseGeocoder(mContext);
+                name = geocoder.computeAddress(set);
+                if (name == null) mUnresolvedKeys.add(key);
+            }
             if (name != null) {
+                names.put(key, name);
+                Collections.sort(cluster, sDateComparator);
                 mNames.add(name);
                 mClusters.add(cluster);
             } else {
@@ -132,13 +199,17 @@ class LocationClustering extends Clustering {
                 hasUnresolvedAddress = true;
             }
         }
+        mNameCache = names;
+        mNameLocale = locale;
 
         if (withoutLatLong.size() > 0) {
+            Collections.sort(withoutLatLong, sDateComparator);
             mNames.add(mNoLocationString);
             mClusters.add(withoutLatLong);
         }
 
-        if (hasUnresolvedAddress) {
+        if (hasUnresolvedAddress && !mNoConnectivityShown) {
+            mNoConnectivityShown = true;
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -149,13 +220,12 @@ class LocationClustering extends Clustering {
         }
     }
 
-    private static String generateName(ArrayList<SmallItem> items,
-            ReverseGeocoder geocoder) {
+    private static ReverseGeocoder.SetLatLong getSetLatLong(ArrayList<Entry> items) {
         ReverseGeocoder.SetLatLong set = new ReverseGeocoder.SetLatLong();
 
         int n = items.size();
         for (int i = 0; i < n; i++) {
-            SmallItem item = items.get(i);
+            Entry item = items.get(i);
             double itemLatitude = item.lat;
             double itemLongitude = item.lng;
 
@@ -177,7 +247,17 @@ class LocationClustering extends Clustering {
             }
         }
 
-        return geocoder.computeAddress(set);
+        return set;
+    }
+
+    // The geocoder names a set after its extreme points, and the points of a
+    // cell are close enough to share their address: two sets whose extreme
+    // points are in the same cells get the same name.
+    private static String getNameKey(ReverseGeocoder.SetLatLong set) {
+        return LocationIndex.getCellKey(set.mMinLatLatitude, set.mMinLatLongitude)
+                + ":" + LocationIndex.getCellKey(set.mMaxLatLatitude, set.mMaxLatLongitude)
+                + ":" + LocationIndex.getCellKey(set.mMinLonLatitude, set.mMinLonLongitude)
+                + ":" + LocationIndex.getCellKey(set.mMaxLonLatitude, set.mMaxLonLongitude);
     }
 
     @Override
@@ -187,7 +267,7 @@ class LocationClustering extends Clustering {
 
     @Override
     public ArrayList<Path> getCluster(int index) {
-        ArrayList<SmallItem> items = mClusters.get(index);
+        ArrayList<Entry> items = mClusters.get(index);
         ArrayList<Path> result = new ArrayList<Path>(items.size());
         for (int i = 0, n = items.size(); i < n; i++) {
             result.add(items.get(i).path);
@@ -200,88 +280,123 @@ class LocationClustering extends Clustering {
         return mNames.get(index);
     }
 
-    // Input: n points
+    private static synchronized ForkJoinPool getPool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sPool;
+    }
+
+    // Input: n points, as their latitudes and longitudes in radians, and
+    // their weights (the number of items at each point).
     // Output: the best k is stored in bestK[0], and the return value is the
     // an array which specifies the group that each point belongs (0 to k - 1).
-    private static int[] kMeans(Point points[], int[] bestK) {
-        int n = points.length;
-
-        // min and max number of groups wanted
+    //
+    // Each k from MIN_GROUPS to MAX_GROUPS is a separate task, and the tasks
+    // run in parallel. Their assignment steps are split in parallel chunks
+    // too when there are many points.
+    private static int[] kMeans(double[] latRad, double[] lngRad, int[] weight,
+            int[] bestK) {
+        int n = latRad.length;
+
+        // min and max number of groups wanted. More groups than distinct
+        // locations cannot have more centers.
         int minK = Math.min(n, MIN_GROUPS);
-        int maxK = Math.min(n, MAX_GROUPS);
+        int maxK = countDistinctLocations(latRad, lngRad, Math.min(n, MAX_GROUPS));
 
-        Point[] center = new Point[maxK];  // center of each group.
-        Point[] groupSum = new Point[maxK];  // sum of points in each group.
-        int[] groupCount = new int[maxK];  // number of points in each group.
-        int[] grouping = new int[n]; // The group assignment for each point.
-
-        for (int i = 0; i < maxK; i++) {
-            center[i] = new Point();
-            groupSum[i] = new Point();
+        final KMeansResult result = new KMeansResult(n);
+        final ArrayList<KMeansTask> tasks = new ArrayList<KMeansTask>();
+        for (int k = minK; k <= maxK; k++) {
+            tasks.add(new KMeansTask(latRad, lngRad, weight, k, result));
         }
+        getPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        bestK[0] = result.realK;
+        return result.grouping;
+    }
 
+    // The best result of the KMeansTasks.
+    private static class KMeansResult {
         // The score we want to minimize is:
         //   (sum of distance from each point to its group center) * sqrt(k).
-        float bestScore = Float.MAX_VALUE;
-        // The best group assignment up to now.
-        int[] bestGrouping = new int[n];
-        // The best K up to now.
-        bestK[0] = 1;
+        float score = Float.MAX_VALUE;
+        int k = Integer.MAX_VALUE;
+        int realK = 1;
+        // The group assignment.
+        final int[] grouping;
+
+        KMeansResult(int n) {
+            grouping = new int[n];
+        }
+
+        // On a tie, the smaller k wins.
+        synchronized void offer(float score, int k, int realK, int[] grouping,
+                int[] reassign) {
+            if (score > this.score || (score == this.score && k > this.k)) return;
+            this.score = score;
+            this.k = k;
+            this.realK = realK;
+            for (int i = 0, n = grouping.length; i < n; i++) {
+                this.grouping[i] = reassign[grouping[i]];
+            }
+        }
+    }
 
-        float lastDistance = 0;
-        float totalDistance = 0;
+    private static class KMeansTask extends RecursiveAction {
+        private final double[] mLatRad;
+        private final double[] mLngRad;
+        private final int[] mWeight;
+        private final int mK;
+        private final KMeansResult mResult;
+
+        KMeansTask(double[] latRad, double[] lngRad, int[] weight, int k,
+                KMeansResult result) {
+            mLatRad = latRad;
+            mLngRad = lngRad;
+            mWeight = weight;
+            mK = k;
+            mResult = result;
+        }
 
-        for (int k = minK; k <= maxK; k++) {
-            // step 1: (arbitrarily) pick k points as the initial centers.
-            int delta = n / k;
-            for (int i = 0; i < k; i++) {
-                Point p = points[i * delta];
-                center[i].latRad = p.latRad;
-                center[i].lngRad = p.lngRad;
+        @Override
+        protected void compute() {
+            int n = mLatRad.length;
+            int k = mK;
+
+            // step 1: pick k points as the initial centers, with k-means++.
+            double[] centerLat = new double[k];
+            double[] centerLng = new double[k];
+            int found = seedCenters(mLatRad, mLngRad, mWeight, k, centerLat,
+                    centerLng, new Random(k));
+            if (found < k) {
+                // The seeding ran out of distinct locations: the smaller k
+                // with as many groups as centers covers this case. This only
+                // depends on k and the points, so the result does not depend
+                // on which task finishes first.
+                return;
             }
 
+            int[] grouping = new int[n];
+            int[] groupCount = null;
+            float lastDistance = 0;
+            float totalDistance = 0;
             for (int iter = 0; iter < MAX_ITERATIONS; iter++) {
                 // step 2: assign each point to the nearest center.
-                for (int i = 0; i < k; i++) {
-                    groupSum[i].latRad = 0;
-                    groupSum[i].lngRad = 0;
-                    groupCount[i] = 0;
-                }
-                totalDistance = 0;
-
-                for (int i = 0; i < n; i++) {
-                    Point p = points[i];
-                    float bestDistance = Float.MAX_VALUE;
-                    int bestIndex = 0;
-                    for (int j = 0; j < k; j++) {
-                        float distance = (float) GalleryUtils.fastDistanceMeters(
-                                p.latRad, p.lngRad, center[j].latRad, center[j].lngRad);
-                        if (distance < GROUP_LOCATION_DISTANCE_MAX) {
-                            distance = GROUP_LOCATION_DISTANCE_MAX;
-                        }
-                        // We may have small non-zero distance introduced by
-                        // floating point calculation, so zero out small
-                        // distances less than 1 meter.
-                        if (distance < 1) {
-                            distance = 0;
-                        }
-                        if (distance < bestDistance) {
-                            bestDistance = distance;
-                            bestIndex = j;
-                        }
-                    }
-                    grouping[i] = bestIndex;
-                    groupCount[bestIndex]++;
-                    groupSum[bestIndex].latRad += p.latRad;
-                    groupSum[bestIndex].lngRad += p.lngRad;
-                    totalDistance += bestDistance;
-                }
+                AssignResult sums = new AssignTask(mLatRad, mLngRad, mWeight,
+                        0, n, centerLat, centerLng, grouping).compute();
+                groupCount = sums.groupCount;
+                totalDistance = sums.totalDistance;
 
                 // step 3: calculate new centers
                 for (int i = 0; i < k; i++) {
                     if (groupCount[i] > 0) {
-                        center[i].latRad = groupSum[i].latRad / groupCount[i];
-                        center[i].lngRad = groupSum[i].lngRad / groupCount[i];
+                        centerLat[i] = sums.sumLat[i] / groupCount[i];
+                        centerLng[i] = sums.sumLng[i] / groupCount[i];
                     }
                 }
 
@@ -303,18 +418,171 @@ class LocationClustering extends Clustering {
 
             // step 5: calculate the final score
             float score = totalDistance * (float) Math.sqrt(realK);
+            mResult.offer(score, k, realK, grouping, reassign);
+        }
+    }
 
-            if (score < bestScore) {
-                bestScore = score;
-                bestK[0] = realK;
-                for (int i = 0; i < n; i++) {
-                    bestGrouping[i] = reassign[grouping[i]];
-                }
-                if (score == 0) {
+    private static double distance(double latRad1, double lngRad1,
+            double latRad2, double lngRad2) {
+        float distance = (float) GalleryUtils.fastDistanceMeters(
+                latRad1, lngRad1, latRad2, lngRad2);
+        if (distance < GROUP_LOCATION_DISTANCE_MAX) {
+            distance = GROUP_LOCATION_DISTANCE_MAX;
+        }
+        return distance;
+    }
+
+    // Returns the number of distinct locations among the points, at most max.
+    // A point is a new location if it is farther than
+    // GROUP_LOCATION_DISTANCE_MAX from all the locations found before it.
+    private static int countDistinctLocations(double[] latRad, double[] lngRad,
+            int max) {
+        int n = latRad.length;
+        int[] found = new int[max];
+        int count = 0;
+        for (int i = 0; i < n && count < max; i++) {
+            boolean isNew = true;
+            for (int j = 0; j < count; j++) {
+                double d = distance(latRad[i], lngRad[i],
+                        latRad[found[j]], lngRad[found[j]]);
+                if (d <= GROUP_LOCATION_DISTANCE_MAX) {
+                    isNew = false;
                     break;
                 }
             }
+            if (isNew) found[count++] = i;
+        }
+        return count;
+    }
+
+    // Picks up to k centers among the points with k-means++: each new center
+    // is a point picked with a probability proportional to its weight times
+    // its squared distance to the nearest center so far. The points closer than
+    // GROUP_LOCATION_DISTANCE_MAX to a center count as the same location.
+    // Returns the number of centers, less than k if there are not enough
+    // distinct locations.
+    private static int seedCenters(double[] latRad, double[] lngRad,
+            int[] weight, int k, double[] centerLat, double[] centerLng,
+            Random random) {
+        int n = latRad.length;
+        double[] minDistance = new double[n];
+        int pick = random.nextInt(n);
+        int found = 0;
+        while (true) {
+            centerLat[found] = latRad[pick];
+            centerLng[found] = lngRad[pick];
+            ++found;
+            if (found == k) return found;
+
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                double d = distance(latRad[i], lngRad[i],
+                        centerLat[found - 1], centerLng[found - 1]);
+                d = (d <= GROUP_LOCATION_DISTANCE_MAX) ? 0 : d * d;
+                if (found == 1 || d < minDistance[i]) minDistance[i] = d;
+                sum += minDistance[i] * weight[i];
+            }
+            if (sum == 0) return found;
+
+            double r = random.nextDouble() * sum;
+            pick = -1;
+            for (int i = 0; i < n; i++) {
+                if (minDistance[i] == 0) continue;
+                pick = i;
+                r -= minDistance[i] * weight[i];
+                if (r < 0) break;
+            }
+        }
+    }
+
+    private static class AssignResult {
+        final double[] sumLat;
+        final double[] sumLng;
+        final int[] groupCount;
+        float totalDistance;
+
+        AssignResult(int k) {
+            sumLat = new double[k];
+            sumLng = new double[k];
+            groupCount = new int[k];
+        }
+
+        void add(AssignResult other) {
+            for (int i = 0, k = groupCount.length; i < k; i++) {
+                sumLat[i] += other.sumLat[i];
+                sumLng[i] += other.sumLng[i];
+                groupCount[i] += other.groupCount[i];
+            }
+            totalDistance += other.totalDistance;
+        }
+    }
+
+    // Assigns the points in [start, end) to their nearest center, and sums
+    // them by group, each point counting as many times as its weight.
+    private static class AssignTask extends RecursiveTask<AssignResult> {
+        private final double[] mLatRad;
+        private final double[] mLngRad;
+        private final int[] mWeight;
+        private final int mStart;
+        private final int mEnd;
+        private final double[] mCenterLat;
+        private final double[] mCenterLng;
+        private final int[] mGrouping;
+
+        AssignTask(double[] latRad, double[] lngRad, int[] weight, int start,
+                int end, double[] centerLat, double[] centerLng, int[] grouping) {
+            mLatRad = latRad;
+            mLngRad = lngRad;
+            mWeight = weight;
+            mStart = start;
+            mEnd = end;
+            mCenterLat = centerLat;
+            mCenterLng = centerLng;
+            mGrouping = grouping;
+        }
+
+        @Override
+        protected AssignResult compute() {
+            if (mEnd - mStart > ASSIGN_CHUNK_SIZE) {
+                int middle = (mStart + mEnd) >>> 1;
+                AssignTask left = new AssignTask(mLatRad, mLngRad, mWeight,
+                        mStart, middle, mCenterLat, mCenterLng, mGrouping);
+                left.fork();
+                AssignResult result = new AssignTask(mLatRad, mLngRad, mWeight,
+                        middle, mEnd, mCenterLat, mCenterLng, mGrouping).compute();
+                result.add(left.join());
+                return result;
+            }
+
+            int k = mCenterLat.length;
+            AssignResult result = new AssignResult(k);
+            for (int i = mStart; i < mEnd; i++) {
+                double lat = mLatRad[i];
+                double lng = mLngRad[i];
+                float bestDistance = Float.MAX_VALUE;
+                int bestIndex = 0;
+                for (int j = 0; j < k; j++) {
+                    float distance = (float) distance(
+                            lat, lng, mCenterLat[j], mCenterLng[j]);
+                    // We may have small non-zero distance introduced by
+                    // floating point calculation, so zero out small
+                    // distances less than 1 meter.
+                    if (distance < 1) {
+                        distance = 0;
+                    }
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        bestIndex = j;
+                    }
+                }
+                int w = mWeight[i];
+                mGrouping[i] = bestIndex;
+                result.groupCount[bestIndex] += w;
+                result.sumLat[bestIndex] += lat * w;
+                result.sumLng[bestIndex] += lng * w;
+                result.totalDistance += bestDistance * w;
+            }
+            return result;
         }
-        return bestGrouping;
     }
 }
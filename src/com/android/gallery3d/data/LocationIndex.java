@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import com.android.gallery3d.util.GalleryUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+
+// A grid over the locations of the items of a MediaSet. The cells are
+// CELL_SIZE degrees of latitude by CELL_SIZE degrees of longitude, and each
+// cell keeps its items and the sum of their coordinates, so the items of a
+// cell can be handled together as one weighted point at their centroid.
+//
+// The index is kept with the data version of the base set it was built for,
+// and update() only moves the items added, removed or changed since then.
+class LocationIndex {
+    @SuppressWarnings("unused")
+    private static final String TAG = "LocationIndex";
+
+    // About 550 meters of latitude, close to the distance under which
+    // LocationClustering treats two locations as the same.
+    static final double CELL_SIZE = 0.005;
+
+    static class Entry {
+        Path path;
+        long dateInMs;
+        double lat, lng;
+        // The key of the cell of the entry, or NO_CELL.
+        long cellKey;
+    }
+
+    static class Cell {
+        final long key;
+        final HashSet<Entry> entries = new HashSet<Entry>();
+        // The sums of the latitudes and longitudes of the entries, in radians.
+        double sumLatRad, sumLngRad;
+
+        Cell(long key) {
+            this.key = key;
+        }
+
+        void add(Entry entry) {
+            entries.add(entry);
+            sumLatRad += Math.toRadians(entry.lat);
+            sumLngRad += Math.toRadians(entry.lng);
+        }
+
+        void remove(Entry entry) {
+            entries.remove(entry);
+            sumLatRad -= Math.toRadians(entry.lat);
+            sumLngRad -= Math.toRadians(entry.lng);
+        }
+
+        int size() {
+            return entries.size();
+        }
+    }
+
+    static final long NO_CELL = Long.MIN_VALUE;
+
+    // The results of update().
+    static final int UNCHANGED = 0;
+    // Some items were removed, and none added or changed.
+    static final int REMOVED = 1;
+    // Some items were added or changed, and maybe some removed.
+    static final int ADDED = 2;
+
+    private HashMap<Path, Entry> mEntries = new HashMap<Path, Entry>();
+    private final HashMap<Long, Cell> mCells = new HashMap<Long, Cell>();
+    // The entries without a valid location.
+    private final HashSet<Entry> mNoLocation = new HashSet<Entry>();
+    private long mVersion = MediaObject.INVALID_DATA_VERSION;
+
+    // Returns the key of the cell containing the location.
+    static long getCellKey(double lat, double lng) {
+        long row = (long) Math.floor((lat + 90) / CELL_SIZE);
+        long column = (long) Math.floor((lng + 180) / CELL_SIZE);
+        return (row << 32) | column;
+    }
+
+    // Brings the index up to date with the items of the base set. Returns
+    // UNCHANGED, REMOVED or ADDED.
+    public int update(MediaSet baseSet) {
+        if (baseSet.getDataVersion() == mVersion) return UNCHANGED;
+
+        MediaSetSnapshot snapshot = MediaSetSnapshot.get(baseSet);
+        HashMap<Path, Entry> oldEntries = mEntries;
+        HashMap<Path, Entry> entries = new HashMap<Path, Entry>(snapshot.count);
+        ArrayList<Entry> added = new ArrayList<Entry>();
+        for (int i = 0; i < snapshot.count; i++) {
+            Path path = snapshot.paths[i];
+            double lat = snapshot.lats[i];
+            double lng = snapshot.lngs[i];
+            long dateInMs = snapshot.dates[i];
+            Entry e = oldEntries.remove(path);
+            if (e == null || e.lat != lat || e.lng != lng || e.dateInMs != dateInMs) {
+                // The old one (if any) is left in oldEntries to be removed.
+                if (e != null) oldEntries.put(path, e);
+                e = new Entry();
+                e.path = path;
+                e.dateInMs = dateInMs;
+                e.lat = lat;
+                e.lng = lng;
+                e.cellKey = GalleryUtils.isValidLocation(lat, lng)
+                        ? getCellKey(lat, lng) : NO_CELL;
+                added.add(e);
+            }
+            entries.put(path, e);
+        }
+
+        int result = !added.isEmpty() ? ADDED
+                : !oldEntries.isEmpty() ? REMOVED : UNCHANGED;
+        for (Entry e : oldEntries.values()) {
+            if (e.cellKey == NO_CELL) {
+                mNoLocation.remove(e);
+                continue;
+            }
+            Cell cell = mCells.get(e.cellKey);
+            cell.remove(e);
+            if (cell.size() == 0) mCells.remove(e.cellKey);
+        }
+        for (Entry e : added) {
+            if (e.cellKey == NO_CELL) {
+                mNoLocation.add(e);
+                continue;
+            }
+            Cell cell = mCells.get(e.cellKey);
+            if (cell == null) {
+                cell = new Cell(e.cellKey);
+                mCells.put(e.cellKey, cell);
+            }
+            cell.add(e);
+        }
+
+        mEntries = entries;
+        mVersion = snapshot.version;
+        return result;
+    }
+
+    // Returns true if the entry is the current one of its item.
+    public boolean contains(Entry entry) {
+        return mEntries.get(entry.path) == entry;
+    }
+
+    // Returns the non-empty cells, in no particular order.
+    public Collection<Cell> getCells() {
+        return mCells.values();
+    }
+
+    public Collection<Entry> getNoLocationEntries() {
+        return mNoLocation;
+    }
+}
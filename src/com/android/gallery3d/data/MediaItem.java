@@ -58,6 +58,12 @@ public abstract class MediaItem extends MediaObject {
         super(path, version);
     }
 
+    // Returns the key under which requestImage(type) caches its result in the
+    // ImageCacheService, or null if the result is not cached there.
+    public ImageCacheService.ImageKey getImageCacheKey(int type) {
+        return null;
+    }
+
     public long getDateInMs() {
         return 0;
     }
@@ -18,6 +18,8 @@ package com.android.gallery3d.data;
 
 import android.net.Uri;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public abstract class MediaObject {
     @SuppressWarnings("unused")
     private static final String TAG = "MediaObject";
@@ -65,7 +67,7 @@ public abstract class MediaObject {
     public static final int CACHE_STATUS_CACHED_SCREENNAIL = 2;
     public static final int CACHE_STATUS_CACHED_FULL = 3;
 
-    private static long sVersionSerial = 0;
+    private static final AtomicLong sVersionSerial = new AtomicLong();
 
     protected long mDataVersion;
 
@@ -145,8 +147,8 @@ public abstract class MediaObject {
         throw new UnsupportedOperationException();
     }
 
-    public static synchronized long nextVersionNumber() {
-        return ++MediaObject.sVersionSerial;
+    public static long nextVersionNumber() {
+        return sVersionSerial.incrementAndGet();
     }
 
     public static int getTypeFromString(String s) {
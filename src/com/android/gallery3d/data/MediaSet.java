@@ -195,6 +195,14 @@ public abstract class MediaSet extends MediaObject {
     // in the same thread as getMediaItem(int, int) and getSubMediaSet(int).
     public abstract long reload();
 
+    // Returns how the media items changed from the data version fromVersion
+    // to the one returned by the last reload(), or null if it is not known,
+    // in which case all the items should be fetched again. Should be called
+    // in the same thread as reload().
+    public ChangeSet getChangesSince(long fromVersion) {
+        return null;
+    }
+
     public void reloadClustering() {
     }
 
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import java.util.WeakHashMap;
+
+// The attributes the clusterings group by, for all the items of a MediaSet
+// at one data version, stored by column. The items are in the order of
+// enumerateTotalMediaItems(), and item i has paths[i], dates[i], and so on.
+//
+// The clusterings of a base set share its latest snapshot (see get()), so
+// switching between them walks the items of the base set only once per
+// data version, and does not keep the MediaItems around.
+class MediaSetSnapshot {
+    @SuppressWarnings("unused")
+    private static final String TAG = "MediaSetSnapshot";
+
+    private static final WeakHashMap<MediaSet, MediaSetSnapshot> sSnapshots =
+            new WeakHashMap<MediaSet, MediaSetSnapshot>();
+
+    // The data version of the base set the items were read at.
+    final long version;
+    final int count;
+    final Path[] paths;
+    final long[] dates;
+    final double[] lats;
+    final double[] lngs;
+    final long[] sizes;
+    final int[] mediaTypes;
+    // The tags and faces of the items, null where an item has none.
+    final String[][] tags;
+    final Face[][] faces;
+
+    private MediaSetSnapshot(MediaSet baseSet, long version) {
+        this.version = version;
+        final int total = baseSet.getTotalMediaItemCount();
+        final Path[] paths = new Path[total];
+        final long[] dates = new long[total];
+        final double[] lats = new double[total];
+        final double[] lngs = new double[total];
+        final long[] sizes = new long[total];
+        final int[] mediaTypes = new int[total];
+        final String[][] tags = new String[total][];
+        final Face[][] faces = new Face[total][];
+        final double[] latLong = new double[2];
+        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
+            @Override
+            public void consume(int index, MediaItem item) {
+                if (index < 0 || index >= total) return;
+                paths[index] = item.getPath();
+                dates[index] = item.getDateInMs();
+                item.getLatLong(latLong);
+                lats[index] = latLong[0];
+                lngs[index] = latLong[1];
+                sizes[index] = item.getSize();
+                mediaTypes[index] = item.getMediaType();
+                tags[index] = item.getTags();
+                faces[index] = item.getFaces();
+            }
+        });
+
+        // Close the gaps left by the items which could not be enumerated.
+        int n = 0;
+        for (int i = 0; i < total; i++) {
+            if (paths[i] == null) continue;
+            if (n != i) {
+                paths[n] = paths[i];
+                dates[n] = dates[i];
+                lats[n] = lats[i];
+                lngs[n] = lngs[i];
+                sizes[n] = sizes[i];
+                mediaTypes[n] = mediaTypes[i];
+                tags[n] = tags[i];
+                faces[n] = faces[i];
+            }
+            ++n;
+        }
+        this.count = n;
+        this.paths = paths;
+        this.dates = dates;
+        this.lats = lats;
+        this.lngs = lngs;
+        this.sizes = sizes;
+        this.mediaTypes = mediaTypes;
+        this.tags = tags;
+        this.faces = faces;
+    }
+
+    // Returns the snapshot of the base set at its current data version,
+    // reading the items only if no clustering has done it yet.
+    static MediaSetSnapshot get(MediaSet baseSet) {
+        long version = baseSet.getDataVersion();
+        synchronized (sSnapshots) {
+            MediaSetSnapshot snapshot = sSnapshots.get(baseSet);
+            if (snapshot != null && snapshot.version == version) return snapshot;
+        }
+        // Read outside of the lock: two clusterings may both read the same
+        // new version, which is rare and harmless.
+        MediaSetSnapshot snapshot = new MediaSetSnapshot(baseSet, version);
+        synchronized (sSnapshots) {
+            MediaSetSnapshot current = sSnapshots.get(baseSet);
+            if (current == null || current.version < version) {
+                sSnapshots.put(baseSet, snapshot);
+            }
+        }
+        return snapshot;
+    }
+}
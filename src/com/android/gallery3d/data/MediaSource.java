@@ -78,7 +78,7 @@ public abstract class MediaSource {
         for (int i = 0; i < n; i++) {
             PathId pid = list.get(i);
             MediaObject obj;
-            synchronized (DataManager.LOCK) {
+            synchronized (DataManager.getLock(pid.path)) {
                 obj = pid.path.getObject();
                 if (obj == null) {
                     try {
@@ -22,14 +22,20 @@ import com.android.gallery3d.util.IdentityCache;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 
+// A Path is unique for its string (see fromString()), so it can be compared
+// with == and used as the lock for the creation of its MediaObject, see
+// DataManager.getLock(). The parent and the segment never change, so only
+// the table of children needs a lock.
 public class Path {
     private static final String TAG = "Path";
-    private static Path sRoot = new Path(null, "ROOT");
+    private static volatile Path sRoot = new Path(null, "ROOT");
 
     private final Path mParent;
     private final String mSegment;
-    private WeakReference<MediaObject> mObject;
-    private IdentityCache<String, Path> mChildren;
+    private volatile WeakReference<MediaObject> mObject;
+    private volatile IdentityCache<String, Path> mChildren;
+    // Stable hash of toString(), computed on demand. 0 if not computed yet.
+    private volatile long mCacheId;
 
     private Path(Path parent, String segment) {
         mParent = parent;
@@ -37,24 +43,27 @@ public class Path {
     }
 
     public Path getChild(String segment) {
-        synchronized (Path.class) {
-            if (mChildren == null) {
-                mChildren = new IdentityCache<String, Path>();
-            } else {
-                Path p = mChildren.get(segment);
-                if (p != null) return p;
+        IdentityCache<String, Path> children = mChildren;
+        if (children == null) {
+            synchronized (Path.class) {
+                children = mChildren;
+                if (children == null) {
+                    children = new IdentityCache<String, Path>();
+                    mChildren = children;
+                }
             }
-
-            Path p = new Path(this, segment);
-            mChildren.put(segment, p);
+        }
+        synchronized (children) {
+            Path p = children.get(segment);
+            if (p != null) return p;
+            p = new Path(this, segment);
+            children.put(segment, p);
             return p;
         }
     }
 
     public Path getParent() {
-        synchronized (Path.class) {
-            return mParent;
-        }
+        return mParent;
     }
 
     public Path getChild(int segment) {
@@ -66,30 +75,36 @@ public class Path {
     }
 
     public void setObject(MediaObject object) {
-        synchronized (Path.class) {
-            //Utils.assertTrue(mObject == null || mObject.get() == null);
-            mObject = new WeakReference<MediaObject>(object);
-        }
+        //Utils.assertTrue(mObject == null || mObject.get() == null);
+        mObject = new WeakReference<MediaObject>(object);
     }
 
     MediaObject getObject() {
-        synchronized (Path.class) {
-            return (mObject == null) ? null : mObject.get();
-        }
+        WeakReference<MediaObject> object = mObject;
+        return (object == null) ? null : object.get();
     }
 
     @Override
     // TODO: toString() should be more efficient, will fix it later
     public String toString() {
-        synchronized (Path.class) {
-            StringBuilder sb = new StringBuilder();
-            String[] segments = split();
-            for (int i = 0; i < segments.length; i++) {
-                sb.append("/");
-                sb.append(segments[i]);
-            }
-            return sb.toString();
+        StringBuilder sb = new StringBuilder();
+        String[] segments = split();
+        for (int i = 0; i < segments.length; i++) {
+            sb.append("/");
+            sb.append(segments[i]);
         }
+        return sb.toString();
+    }
+
+    // Returns a 64-bit id of this path which stays the same across processes,
+    // for use in persistent cache keys.
+    public long getCacheId() {
+        long id = mCacheId;
+        if (id == 0) {
+            id = Utils.crc64Long(toString());
+            mCacheId = id;
+        }
+        return id;
     }
 
     public boolean equalsIgnoreCase (String p) {
@@ -98,29 +113,26 @@ public class Path {
     }
 
     public static Path fromString(String s) {
-        synchronized (Path.class) {
-            String[] segments = split(s);
-            Path current = sRoot;
-            for (int i = 0; i < segments.length; i++) {
-                current = current.getChild(segments[i]);
-            }
-            return current;
+        String[] segments = split(s);
+        Path current = sRoot;
+        for (int i = 0; i < segments.length; i++) {
+            current = current.getChild(segments[i]);
         }
+        return current;
     }
 
     public String[] split() {
-        synchronized (Path.class) {
-            int n = 0;
-            for (Path p = this; p != sRoot; p = p.mParent) {
-                n++;
-            }
-            String[] segments = new String[n];
-            int i = n - 1;
-            for (Path p = this; p != sRoot; p = p.mParent) {
-                segments[i--] = p.mSegment;
-            }
-            return segments;
+        Path root = sRoot;
+        int n = 0;
+        for (Path p = this; p != root; p = p.mParent) {
+            n++;
+        }
+        String[] segments = new String[n];
+        int i = n - 1;
+        for (Path p = this; p != root; p = p.mParent) {
+            segments[i--] = p.mSegment;
         }
+        return segments;
     }
 
     public static String[] split(String s) {
@@ -186,16 +198,15 @@ public class Path {
     }
 
     public Path getPrefixPath() {
-        synchronized (Path.class) {
-            Path current = this;
-            if (current == sRoot) {
-                throw new IllegalStateException();
-            }
-            while (current.mParent != sRoot) {
-                current = current.mParent;
-            }
-            return current;
+        Path root = sRoot;
+        Path current = this;
+        if (current == root) {
+            throw new IllegalStateException();
+        }
+        while (current.mParent != root) {
+            current = current.mParent;
         }
+        return current;
     }
 
     public String getSuffix() {
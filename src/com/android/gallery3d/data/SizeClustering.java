@@ -53,27 +53,25 @@ public class SizeClustering extends Clustering {
     @Override
     public void run(MediaSet baseSet) {
         @SuppressWarnings("unchecked")
-        final ArrayList<Path>[] group = new ArrayList[SIZE_LEVELS.length];
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
-            @Override
-            public void consume(int index, MediaItem item) {
-                // Find the cluster this item belongs to.
-                long size = item.getSize();
-                int i;
-                for (i = 0; i < SIZE_LEVELS.length - 1; i++) {
-                    if (size < SIZE_LEVELS[i + 1]) {
-                        break;
-                    }
+        ArrayList<Path>[] group = new ArrayList[SIZE_LEVELS.length];
+        MediaSetSnapshot snapshot = MediaSetSnapshot.get(baseSet);
+        for (int j = 0; j < snapshot.count; j++) {
+            // Find the cluster this item belongs to.
+            long size = snapshot.sizes[j];
+            int i;
+            for (i = 0; i < SIZE_LEVELS.length - 1; i++) {
+                if (size < SIZE_LEVELS[i + 1]) {
+                    break;
                 }
+            }
 
-                ArrayList<Path> list = group[i];
-                if (list == null) {
-                    list = new ArrayList<Path>();
-                    group[i] = list;
-                }
-                list.add(item.getPath());
+            ArrayList<Path> list = group[i];
+            if (list == null) {
+                list = new ArrayList<Path>();
+                group[i] = list;
             }
-        });
+            list.add(snapshot.paths[j]);
+        }
 
         int count = 0;
         for (int i = 0; i < group.length; i++) {
@@ -21,17 +21,92 @@ import android.content.Context;
 import com.android.gallery3d.R;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
 // maxwen DISABLED!
+//
+// The clusters are kept with the data version of the base set they were
+// computed for, so update() can move only the items added, removed or
+// retagged since then.
 public class TagClustering extends Clustering {
     @SuppressWarnings("unused")
     private static final String TAG = "TagClustering";
 
-    private ArrayList<ArrayList<Path>> mClusters;
+    private final TreeMap<String, TagCluster> mClusterMap =
+            new TreeMap<String, TagCluster>();
+    private TagCluster mUntagged = new TagCluster();
+    private ArrayList<TagCluster> mClusters = new ArrayList<TagCluster>();
     private String[] mNames;
     private String mUntaggedString;
+    // All the clustered items, and the data version of the base set they
+    // were clustered with.
+    private HashMap<Path, TagItem> mItems = new HashMap<Path, TagItem>();
+    private long mVersion = MediaObject.INVALID_DATA_VERSION;
+
+    private static class TagItem {
+        Path path;
+        String[] tags;
+        // The index of the item in the base set.
+        int position;
+    }
+
+    private static final Comparator<TagItem> sPositionComparator =
+            new Comparator<TagItem>() {
+        @Override
+        public int compare(TagItem item1, TagItem item2) {
+            return item1.position - item2.position;
+        }
+    };
+
+    private static class TagCluster {
+        private final ArrayList<TagItem> mItems = new ArrayList<TagItem>();
+        // The paths of the items in base set order, or null if the items
+        // changed since they were computed. The items are kept in the same
+        // order while this is set.
+        private ArrayList<Path> mPaths;
+
+        void add(TagItem item) {
+            mItems.add(item);
+            mPaths = null;
+        }
+
+        void remove(TagItem item) {
+            mItems.remove(item);
+            mPaths = null;
+        }
+
+        int size() {
+            return mItems.size();
+        }
+
+        ArrayList<Path> getPaths() {
+            if (mPaths != null && !isInOrder()) {
+                // Some items moved in the base set, e.g. their date changed.
+                mPaths = null;
+            }
+            if (mPaths == null) {
+                Collections.sort(mItems, sPositionComparator);
+                mPaths = new ArrayList<Path>(mItems.size());
+                for (TagItem item : mItems) {
+                    mPaths.add(item.path);
+                }
+            }
+            return mPaths;
+        }
+
+        // Returns true if the items are still in base set order.
+        private boolean isInOrder() {
+            for (int i = 1, n = mItems.size(); i < n; i++) {
+                if (mItems.get(i - 1).position > mItems.get(i).position) return false;
+            }
+            return true;
+        }
+    }
 
     public TagClustering(Context context) {
         mUntaggedString = context.getResources().getString(R.string.untagged);
@@ -39,43 +114,86 @@ public class TagClustering extends Clustering {
 
     @Override
     public void run(MediaSet baseSet) {
-        final TreeMap<String, ArrayList<Path>> map =
-                new TreeMap<String, ArrayList<Path>>();
-        final ArrayList<Path> untagged = new ArrayList<Path>();
-
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
-            @Override
-            public void consume(int index, MediaItem item) {
-                Path path = item.getPath();
-
-                String[] tags = item.getTags();
-                if (tags == null || tags.length == 0) {
-                    untagged.add(path);
-                    return;
-                }
-                for (int j = 0; j < tags.length; j++) {
-                    String key = tags[j];
-                    ArrayList<Path> list = map.get(key);
-                    if (list == null) {
-                        list = new ArrayList<Path>();
-                        map.put(key, list);
-                    }
-                    list.add(path);
+        mClusterMap.clear();
+        mUntagged = new TagCluster();
+        mItems = new HashMap<Path, TagItem>();
+        mVersion = MediaObject.INVALID_DATA_VERSION;
+        update(baseSet);
+    }
+
+    // Moves the items added, removed or retagged since the last run() or
+    // update() in or out of their clusters. The other clusters keep their
+    // paths.
+    @Override
+    public boolean update(MediaSet baseSet) {
+        if (baseSet.getDataVersion() == mVersion) return true;
+
+        MediaSetSnapshot snapshot = MediaSetSnapshot.get(baseSet);
+        HashMap<Path, TagItem> oldItems = mItems;
+        HashMap<Path, TagItem> items = new HashMap<Path, TagItem>(snapshot.count);
+        ArrayList<TagItem> added = new ArrayList<TagItem>();
+        for (int i = 0; i < snapshot.count; i++) {
+            Path path = snapshot.paths[i];
+            String[] tags = snapshot.tags[i];
+            TagItem item = oldItems.remove(path);
+            if (item == null || !Arrays.equals(item.tags, tags)) {
+                // The old one (if any) is left in oldItems to be removed.
+                if (item != null) oldItems.put(path, item);
+                item = new TagItem();
+                item.path = path;
+                item.tags = tags;
+                added.add(item);
+            }
+            item.position = i;
+            items.put(path, item);
+        }
+
+        for (TagItem item : oldItems.values()) {
+            if (item.tags == null || item.tags.length == 0) {
+                mUntagged.remove(item);
+                continue;
+            }
+            for (String tag : item.tags) {
+                TagCluster cluster = mClusterMap.get(tag);
+                if (cluster == null) continue;
+                cluster.remove(item);
+                if (cluster.size() == 0) mClusterMap.remove(tag);
+            }
+        }
+        for (TagItem item : added) {
+            if (item.tags == null || item.tags.length == 0) {
+                mUntagged.add(item);
+                continue;
+            }
+            for (String tag : item.tags) {
+                TagCluster cluster = mClusterMap.get(tag);
+                if (cluster == null) {
+                    cluster = new TagCluster();
+                    mClusterMap.put(tag, cluster);
                 }
+                cluster.add(item);
             }
-        });
+        }
+
+        mItems = items;
+        mVersion = snapshot.version;
+        updateLayout();
+        return true;
+    }
 
-        int m = map.size();
-        mClusters = new ArrayList<ArrayList<Path>>();
-        mNames = new String[m + ((untagged.size() > 0) ? 1 : 0)];
+    // Lists the clusters by tag, then the untagged items if any.
+    private void updateLayout() {
+        int m = mClusterMap.size();
+        mClusters = new ArrayList<TagCluster>(m + 1);
+        mNames = new String[m + ((mUntagged.size() > 0) ? 1 : 0)];
         int i = 0;
-        for (Map.Entry<String, ArrayList<Path>> entry : map.entrySet()) {
+        for (Map.Entry<String, TagCluster> entry : mClusterMap.entrySet()) {
             mNames[i++] = entry.getKey();
             mClusters.add(entry.getValue());
         }
-        if (untagged.size() > 0) {
+        if (mUntagged.size() > 0) {
             mNames[i++] = mUntaggedString;
-            mClusters.add(untagged);
+            mClusters.add(mUntagged);
         }
     }
 
@@ -86,7 +204,7 @@ public class TagClustering extends Clustering {
 
     @Override
     public ArrayList<Path> getCluster(int index) {
-        return mClusters.get(index);
+        return mClusters.get(index).getPaths();
     }
 
     @Override
@@ -28,9 +28,15 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 
 // cluster by month
 // TODO maybe allow weeks optional
+//
+// The clusters are kept with the data version of the base set they were
+// computed for, so they can be updated with the items added or removed
+// since then (see update()) instead of clustering all the items again.
 public class TimeClustering extends Clustering {
     @SuppressWarnings("unused")
     private static final String TAG = "TimeClustering";
@@ -39,8 +45,14 @@ public class TimeClustering extends Clustering {
     private ArrayList<Cluster> mClusters = new ArrayList<Cluster>();;
     private String[] mNames;
     private HashMap<String, Cluster> mClusterMap = new HashMap<>();
+    // All the clustered items, and the settings and data version of the base
+    // set they were clustered with.
+    private HashMap<Path, SmallItem> mItems = new HashMap<Path, SmallItem>();
+    private boolean mClusterByWeeks;
+    private long mVersion = MediaObject.INVALID_DATA_VERSION;
+    private final Calendar mCalendar = Calendar.getInstance();
 
-    private static final Comparator<SmallItem> sDateComparator =
+    static final Comparator<SmallItem> sDateComparator =
             new DateComparator();
 
     private static class DateComparator implements Comparator<SmallItem> {
@@ -54,47 +66,118 @@ public class TimeClustering extends Clustering {
         mContext = context;
     }
 
+    private SmallItem newItem(Path path, long dateInMs) {
+        SmallItem s = new SmallItem();
+        s.path = path;
+        s.dateInMs = dateInMs;
+        mCalendar.setTimeInMillis(s.dateInMs);
+        s.year = mCalendar.get(Calendar.YEAR);
+        s.month = mCalendar.get(Calendar.MONTH);
+        s.week = mCalendar.get(Calendar.WEEK_OF_MONTH);
+        s.key = mClusterByWeeks ? s.year + ":" + s.month + ":" + s.week : s.year + ":" + s.month;
+        return s;
+    }
+
     @Override
     public void run(MediaSet baseSet) {
-        final int total = baseSet.getTotalMediaItemCount();
-        final ArrayList<SmallItem> items = new ArrayList<SmallItem>(total);
-        final Calendar cal = Calendar.getInstance();
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
-            @Override
-            public void consume(int index, MediaItem item) {
-                if (index < 0 || index >= total) return;
-                SmallItem s = new SmallItem();
-                s.path = item.getPath();
-                s.dateInMs = item.getDateInMs();
-                cal.setTimeInMillis(s.dateInMs);
-                s.year = cal.get(Calendar.YEAR);
-                s.month = cal.get(Calendar.MONTH);
-                s.week = cal.get(Calendar.WEEK_OF_MONTH);
-                items.add(s);
-            }
-        });
+        MediaSetSnapshot snapshot = MediaSetSnapshot.get(baseSet);
+        HashMap<Path, SmallItem> items = new HashMap<Path, SmallItem>(snapshot.count);
+        mClusterByWeeks = GalleryUtils.isTimeClusterByWeeks(mContext);
+        for (int i = 0; i < snapshot.count; i++) {
+            SmallItem s = newItem(snapshot.paths[i], snapshot.dates[i]);
+            items.put(s.path, s);
+        }
 
-        mClusters.clear();
+        mItems = items;
+        mVersion = snapshot.version;
         mClusterMap.clear();
 
-        boolean clusterByWeeks = GalleryUtils.isTimeClusterByWeeks(mContext);
-
-        for (SmallItem item : items) {
-            String key = clusterByWeeks ? item.year + ":" + item.month + ":" + item.week : item.year + ":" + item.month;
-            Cluster c = mClusterMap.get(key);
+        for (SmallItem item : items.values()) {
+            Cluster c = mClusterMap.get(item.key);
             if (c != null) {
                 c.addItem(item);
             } else {
                 c = new Cluster();
                 c.addItem(item);
-                mClusterMap.put(key, c);
+                mClusterMap.put(item.key, c);
+            }
+        }
+        updateLayout();
+    }
+
+    // Moves the items added, removed or changed since the last run() or
+    // update() in or out of their clusters. Only the clusters which appear
+    // or become empty change the layout, the other clusters stay where they
+    // are.
+    @Override
+    public boolean update(MediaSet baseSet) {
+        if (GalleryUtils.isTimeClusterByWeeks(mContext) != mClusterByWeeks) {
+            return false;
+        }
+        if (baseSet.getDataVersion() == mVersion) return true;
+
+        MediaSetSnapshot snapshot = MediaSetSnapshot.get(baseSet);
+        long version = snapshot.version;
+        HashMap<Path, SmallItem> oldItems = mItems;
+        HashMap<Path, SmallItem> items = new HashMap<Path, SmallItem>(snapshot.count);
+        ArrayList<SmallItem> added = new ArrayList<SmallItem>();
+        for (int i = 0; i < snapshot.count; i++) {
+            Path path = snapshot.paths[i];
+            long dateInMs = snapshot.dates[i];
+            SmallItem s = oldItems.remove(path);
+            if (s == null || s.dateInMs != dateInMs) {
+                // The old one (if any) is left in oldItems to be removed.
+                if (s != null) oldItems.put(s.path, s);
+                s = newItem(path, dateInMs);
+                added.add(s);
+            }
+            items.put(s.path, s);
+        }
+
+        // Remove the items of each cluster in one pass: many items of the
+        // same cluster are often deleted together.
+        HashMap<String, HashSet<SmallItem>> removed =
+                new HashMap<String, HashSet<SmallItem>>();
+        for (SmallItem item : oldItems.values()) {
+            HashSet<SmallItem> set = removed.get(item.key);
+            if (set == null) {
+                set = new HashSet<SmallItem>();
+                removed.put(item.key, set);
+            }
+            set.add(item);
+        }
+        boolean layoutChanged = false;
+        for (Map.Entry<String, HashSet<SmallItem>> entry : removed.entrySet()) {
+            Cluster c = mClusterMap.get(entry.getKey());
+            c.removeItems(entry.getValue());
+            if (c.size() == 0) {
+                mClusterMap.remove(entry.getKey());
+                layoutChanged = true;
+            }
+        }
+        for (SmallItem item : added) {
+            Cluster c = mClusterMap.get(item.key);
+            if (c == null) {
+                c = new Cluster();
+                mClusterMap.put(item.key, c);
+                layoutChanged = true;
             }
+            c.addItem(item);
         }
 
+        mItems = items;
+        mVersion = version;
+        if (layoutChanged) updateLayout();
+        return true;
+    }
+
+    // Orders the clusters by date, the latest first, and names them.
+    private void updateLayout() {
         ArrayList<String> keyList = new ArrayList<>();
         keyList.addAll(mClusterMap.keySet());
         Collections.sort(keyList);
 
+        mClusters.clear();
         for (String key : keyList) {
             mClusters.add(mClusterMap.get(key));
         }
@@ -103,7 +186,7 @@ public class TimeClustering extends Clustering {
         int m = mClusters.size();
         mNames = new String[m];
         for (int i = 0; i < m; i++) {
-            mNames[i] = mClusters.get(i).generateCaption(mContext, clusterByWeeks);
+            mNames[i] = mClusters.get(i).generateCaption(mContext, mClusterByWeeks);
         }
     }
 
@@ -114,8 +197,7 @@ public class TimeClustering extends Clustering {
 
     @Override
     public ArrayList<Path> getCluster(int index) {
-        ArrayList<SmallItem> items = mClusters.get(index).getItems();
-        Collections.sort(items, sDateComparator);
+        ArrayList<SmallItem> items = mClusters.get(index).getSortedItems();
         ArrayList<Path> result = new ArrayList<Path>(items.size());
         for (int i = 0, n = items.size(); i < n; i++) {
             result.add(items.get(i).path);
@@ -135,18 +217,26 @@ class SmallItem {
     int month;
     int year;
     int week;
+    // The key of the cluster of the item.
+    String key;
 }
 
 class Cluster {
     @SuppressWarnings("unused")
 
     private ArrayList<SmallItem> mItems = new ArrayList<SmallItem>();
+    private boolean mSorted = true;
 
     public Cluster() {
     }
 
     public void addItem(SmallItem item) {
         mItems.add(item);
+        mSorted = false;
+    }
+
+    public void removeItems(HashSet<SmallItem> items) {
+        mItems.removeAll(items);
     }
 
     public int size() {
@@ -157,6 +247,16 @@ class Cluster {
         return mItems;
     }
 
+    // Returns the items, the latest first. They are only sorted again if
+    // items were added since the last call.
+    public ArrayList<SmallItem> getSortedItems() {
+        if (!mSorted) {
+            Collections.sort(mItems, TimeClustering.sDateComparator);
+            mSorted = true;
+        }
+        return mItems;
+    }
+
     public String generateCaption(Context context, boolean clusterByWeeks) {      
         if (clusterByWeeks) {
             final Calendar cal = Calendar.getInstance();
@@ -33,29 +33,23 @@ public class TypeClustering extends Clustering {
     private class TypeCluster {
         ArrayList<Path> mPaths = new ArrayList<Path>();
         String mName;
-        MediaItem mCoverItem;
 
         public TypeCluster(String name) {
             mName = name;
         }
 
-        public void add(MediaItem item) {
-            Path path = item.getPath();
+        public void add(Path path) {
             mPaths.add(path);
-            if (mCoverItem == null) {
-                mCoverItem = item;
-            }
         }
 
         public int size() {
             return mPaths.size();
         }
 
+        // The cover is the first item.
         public MediaItem getCover() {
-            if (mCoverItem != null) {
-                return mCoverItem;
-            }
-            return null;
+            if (mPaths.isEmpty()) return null;
+            return (MediaItem) DataManager.from(mContext).getMediaObject(mPaths.get(0));
         }
     }
 
@@ -71,18 +65,17 @@ public class TypeClustering extends Clustering {
         final TypeCluster videos = new TypeCluster(mContext.getResources().getString(R.string.type_videos));
         final TypeCluster unknown = new TypeCluster(mUntaggedString);
 
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
-            @Override
-            public void consume(int index, MediaItem item) {
-                if (item.getMediaType() == MediaObject.MEDIA_TYPE_IMAGE) {
-                    images.add(item);
-                } else if (item.getMediaType() == MediaObject.MEDIA_TYPE_VIDEO) {
-                    videos.add(item);
-                } else {
-                    unknown.add(item);
-                }
+        MediaSetSnapshot snapshot = MediaSetSnapshot.get(baseSet);
+        for (int i = 0; i < snapshot.count; i++) {
+            int type = snapshot.mediaTypes[i];
+            if (type == MediaObject.MEDIA_TYPE_IMAGE) {
+                images.add(snapshot.paths[i]);
+            } else if (type == MediaObject.MEDIA_TYPE_VIDEO) {
+                videos.add(snapshot.paths[i]);
+            } else {
+                unknown.add(snapshot.paths[i]);
             }
-        });
+        }
         if (unknown.size() != 0) {
             mClusters = new TypeCluster[] { images, videos, unknown };
         } else {
@@ -22,8 +22,10 @@ import android.os.Message;
 import com.android.gallery3d.R;
 import com.android.gallery3d.app.AbstractGalleryActivity;
 import com.android.gallery3d.app.AlbumSetDataLoader;
+import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.DataSourceType;
+import com.android.gallery3d.data.ImageCacheService.ImageKey;
 import com.android.gallery3d.data.MediaItem;
 import com.android.gallery3d.data.MediaObject;
 import com.android.gallery3d.data.MediaSet;
@@ -36,18 +38,28 @@ import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.FutureListener;
 import com.android.gallery3d.util.Log;
 import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
+import java.util.ArrayList;
+import java.util.Iterator;
 
 public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
     private static final String TAG = "AlbumSetSlidingWindow";
     private static boolean DEBUG = false;
 
     private static final int MSG_UPDATE_ALBUM_ENTRY = 1;
+    // Don't bother batching the cache reads for fewer slots than this.
+    private static final int PREFETCH_MIN_COUNT = 4;
+    // The most slots read by one PrefetchJob.
+    private static final int PREFETCH_BATCH_SIZE = 16;
 
     public static interface Listener {
         public void onSizeChanged(int size);
         public void onContentChanged();
     }
 
+    private final GalleryApp mApplication;
     private final AlbumSetDataLoader mSource;
     private int mSize;
 
@@ -62,6 +74,8 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
     private final AlbumSetEntry mData[];
     private final SynchronizedHandler mHandler;
     private final ThreadPool mThreadPool;
+    // The submitted prefetches, until they are found done or cancelled.
+    private final ArrayList<PrefetchJob> mPrefetchJobs = new ArrayList<PrefetchJob>();
     private final AlbumLabelMaker mLabelMaker;
     private final String mLoadingText;
 
@@ -100,6 +114,7 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
             AlbumSetDataLoader source, AlbumSetSlotRenderer.LabelSpec labelSpec, int cacheSize) {
         source.setModelListener(this);
         mSource = source;
+        mApplication = (GalleryApp) activity.getApplication();
         mData = new AlbumSetEntry[cacheSize];
         mSize = source.size();
         mThreadPool = activity.getThreadPool();
@@ -151,6 +166,7 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
             for (int i = contentStart; i < contentEnd; ++i) {
                 prepareSlotContent(i);
             }
+            prefetchCovers(contentStart, contentEnd, 0, 0);
         } else {
             for (int i = mContentStart; i < contentStart; ++i) {
                 freeSlotContent(i);
@@ -165,7 +181,11 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
             for (int i = mContentEnd; i < contentEnd; ++i) {
                 prepareSlotContent(i);
             }
+            prefetchCovers(contentStart, mContentStart, mContentEnd, contentEnd);
         }
+        // Drop the prefetches of the slots which left the window.
+        cancelPrefetches(0, contentStart);
+        cancelPrefetches(contentEnd, Integer.MAX_VALUE);
 
         mContentStart = contentStart;
         mContentEnd = contentEnd;
@@ -212,6 +232,8 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
             cancelImagesInSlot(mActiveEnd + i);
             cancelImagesInSlot(mActiveStart - 1 - i);
         }
+        cancelPrefetches(mContentStart, mActiveStart);
+        cancelPrefetches(mActiveEnd, mContentEnd);
     }
 
     private void requestImagesInSlot(int slotIndex) {
@@ -413,6 +435,7 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
         for (int i = mContentStart, n = mContentEnd; i < n; ++i) {
             freeSlotContent(i);
         }
+        cancelPrefetches(0, Integer.MAX_VALUE);
     }
 
     public void resume() {
@@ -421,9 +444,73 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
         for (int i = mContentStart, n = mContentEnd; i < n; ++i) {
             prepareSlotContent(i);
         }
+        prefetchCovers(mContentStart, mContentEnd, 0, 0);
         updateAllImageRequests();
     }
 
+    // Reads the cached cover thumbnails of the newly prepared slots in
+    // [start1, end1) and [start2, end2) in batches, so the cover loaders
+    // mostly find them in memory. The batches run in the background, behind
+    // the cover requests, and are cancelled with the nonactive covers.
+    private void prefetchCovers(int start1, int end1, int start2, int end2) {
+        if (!mIsActive) return;
+        prefetchCoverRange(start1, end1);
+        prefetchCoverRange(start2, end2);
+    }
+
+    private void prefetchCoverRange(int start, int end) {
+        for (int i = start; i < end; i += PREFETCH_BATCH_SIZE) {
+            int batchEnd = Math.min(i + PREFETCH_BATCH_SIZE, end);
+            ArrayList<ImageKey> keys = new ArrayList<ImageKey>();
+            for (int j = i; j < batchEnd; ++j) {
+                AlbumSetEntry entry = mData[j % mData.length];
+                if (entry == null || entry.coverItem == null) continue;
+                ImageKey key = entry.coverItem.getImageCacheKey(
+                        MediaItem.TYPE_MICROTHUMBNAIL);
+                if (key != null) keys.add(key);
+            }
+            if (keys.size() < PREFETCH_MIN_COUNT) continue;
+            PrefetchJob job = new PrefetchJob(
+                    i, keys.toArray(new ImageKey[keys.size()]));
+            job.mFuture = mThreadPool.submit(job, null,
+                    ThreadPool.PRIORITY_BACKGROUND);
+            mPrefetchJobs.add(job);
+        }
+    }
+
+    // Cancels the prefetches whose first slot is in [start, end), and
+    // forgets the ones which are done.
+    private void cancelPrefetches(int start, int end) {
+        Iterator<PrefetchJob> it = mPrefetchJobs.iterator();
+        while (it.hasNext()) {
+            PrefetchJob job = it.next();
+            if (job.mFuture.isDone()) {
+                it.remove();
+            } else if (job.mSlotIndex >= start && job.mSlotIndex < end) {
+                job.mFuture.cancel();
+                it.remove();
+            }
+        }
+    }
+
+    private class PrefetchJob implements Job<Void> {
+        private final int mSlotIndex;
+        private final ImageKey[] mKeys;
+        private Future<Void> mFuture;
+
+        public PrefetchJob(int slotIndex, ImageKey[] keys) {
+            mSlotIndex = slotIndex;
+            mKeys = keys;
+        }
+
+        @Override
+        public Void run(JobContext jc) {
+            if (jc.isCancelled()) return null;
+            mApplication.getImageCacheService().prefetchImageData(mKeys);
+            return null;
+        }
+    }
+
     private static interface EntryUpdater {
         public void updateEntry();
     }
@@ -440,7 +527,9 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
         @Override
         protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l) {
             return mThreadPool.submit(mMediaItem.requestImage(
-                    MediaItem.TYPE_MICROTHUMBNAIL), l);
+                    MediaItem.TYPE_MICROTHUMBNAIL), l,
+                    isActiveSlot(mSlotIndex) ? ThreadPool.PRIORITY_VISIBLE
+                            : ThreadPool.PRIORITY_NEAR_VISIBLE);
         }
 
         @Override
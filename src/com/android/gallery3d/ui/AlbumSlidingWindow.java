@@ -21,7 +21,10 @@ import android.os.Message;
 
 import com.android.gallery3d.app.AbstractGalleryActivity;
 import com.android.gallery3d.app.AlbumDataLoader;
+import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.ChangeSet;
+import com.android.gallery3d.data.ImageCacheService.ImageKey;
 import com.android.gallery3d.data.MediaItem;
 import com.android.gallery3d.data.MediaObject;
 import com.android.gallery3d.data.MediaObject.PanoramaSupportCallback;
@@ -31,6 +34,12 @@ import com.android.gallery3d.glrenderer.TiledTexture;
 import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.FutureListener;
 import com.android.gallery3d.util.JobLimiter;
+import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 
 public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
     @SuppressWarnings("unused")
@@ -38,6 +47,10 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
 
     private static final int MSG_UPDATE_ENTRY = 0;
     private static final int JOB_LIMIT = 2;
+    // Don't bother batching the cache reads for fewer slots than this.
+    private static final int PREFETCH_MIN_COUNT = 4;
+    // The most slots read by one PrefetchJob.
+    private static final int PREFETCH_BATCH_SIZE = 16;
 
     public static interface Listener {
         public void onSizeChanged(int size);
@@ -57,6 +70,7 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         private PanoSupportListener mPanoSupportListener;
     }
 
+    private final GalleryApp mApplication;
     private final AlbumDataLoader mSource;
     private final AlbumEntry mData[];
     private final SynchronizedHandler mHandler;
@@ -92,6 +106,7 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
             AlbumDataLoader source, int cacheSize) {
         source.setDataListener(this);
         mSource = source;
+        mApplication = (GalleryApp) activity.getApplication();
         mData = new AlbumEntry[cacheSize];
         mSize = source.size();
 
@@ -141,6 +156,7 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
             for (int i = contentStart; i < contentEnd; ++i) {
                 prepareSlotContent(i);
             }
+            prefetchSlotContent(contentStart, contentEnd, 0, 0);
         } else {
             for (int i = mContentStart; i < contentStart; ++i) {
                 freeSlotContent(i);
@@ -155,7 +171,11 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
             for (int i = mContentEnd; i < contentEnd; ++i) {
                 prepareSlotContent(i);
             }
+            prefetchSlotContent(contentStart, mContentStart, mContentEnd, contentEnd);
         }
+        // Drop the prefetches of the slots which left the window.
+        mThreadPool.cancel(0, contentStart);
+        mThreadPool.cancel(contentEnd, Integer.MAX_VALUE);
 
         mContentStart = contentStart;
         mContentEnd = contentEnd;
@@ -236,19 +256,23 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         return entry.contentLoader.isRequestInProgress();
     }
 
+    // The loads are tagged with the slot index, so their jobs are cancelled
+    // with one call per side of the active range.
     private void cancelNonactiveImages() {
         int range = Math.max(
                 (mContentEnd - mActiveEnd), (mActiveStart - mContentStart));
         for (int i = 0 ;i < range; ++i) {
-            cancelSlotImage(mActiveEnd + i);
-            cancelSlotImage(mActiveStart - 1 - i);
+            resetSlotImage(mActiveEnd + i);
+            resetSlotImage(mActiveStart - 1 - i);
         }
+        mThreadPool.cancel(mContentStart, mActiveStart);
+        mThreadPool.cancel(mActiveEnd, mContentEnd);
     }
 
-    private void cancelSlotImage(int slotIndex) {
+    private void resetSlotImage(int slotIndex) {
         if (slotIndex < mContentStart || slotIndex >= mContentEnd) return;
         AlbumEntry item = mData[slotIndex % mData.length];
-        if (item.contentLoader != null) item.contentLoader.cancelLoad();
+        if (item.contentLoader != null) item.contentLoader.resetLoad();
     }
 
     private void freeSlotContent(int slotIndex) {
@@ -273,7 +297,58 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         mData[slotIndex % mData.length] = entry;
     }
 
+    // Reads the cached thumbnails of the newly prepared slots in [start1, end1)
+    // and [start2, end2) in batches, so their ThumbnailLoaders mostly find
+    // them in memory. The batches run in the background, behind the slot
+    // requests, and are tagged with their first slot like the requests, so
+    // cancelNonactiveImages() drops them as well.
+    private void prefetchSlotContent(int start1, int end1, int start2, int end2) {
+        prefetchSlotRange(start1, end1);
+        prefetchSlotRange(start2, end2);
+    }
+
+    private void prefetchSlotRange(int start, int end) {
+        for (int i = start; i < end; i += PREFETCH_BATCH_SIZE) {
+            int batchEnd = Math.min(i + PREFETCH_BATCH_SIZE, end);
+            ArrayList<ImageKey> keys = new ArrayList<ImageKey>();
+            for (int j = i; j < batchEnd; ++j) {
+                AlbumEntry entry = mData[j % mData.length];
+                if (entry == null || entry.item == null) continue;
+                ImageKey key = entry.item.getImageCacheKey(MediaItem.TYPE_MICROTHUMBNAIL);
+                if (key != null) keys.add(key);
+            }
+            if (keys.size() < PREFETCH_MIN_COUNT) continue;
+            mThreadPool.submit(new PrefetchJob(
+                    keys.toArray(new ImageKey[keys.size()])), null,
+                    ThreadPool.PRIORITY_BACKGROUND, i);
+        }
+    }
+
+    private class PrefetchJob implements Job<Void> {
+        private final ImageKey[] mKeys;
+
+        public PrefetchJob(ImageKey[] keys) {
+            mKeys = keys;
+        }
+
+        @Override
+        public Void run(JobContext jc) {
+            if (jc.isCancelled()) return null;
+            mApplication.getImageCacheService().prefetchImageData(mKeys);
+            return null;
+        }
+    }
+
     private void updateAllImageRequests() {
+        // Move the waiting requests of the slots which came into view ahead
+        // of the ones of the slots which went out of view.
+        mThreadPool.setPriority(mContentStart, mActiveStart,
+                ThreadPool.PRIORITY_NEAR_VISIBLE);
+        mThreadPool.setPriority(mActiveEnd, mContentEnd,
+                ThreadPool.PRIORITY_NEAR_VISIBLE);
+        mThreadPool.setPriority(mActiveStart, mActiveEnd,
+                ThreadPool.PRIORITY_VISIBLE);
+
         mActiveRequestCount = 0;
         for (int i = mActiveStart, n = mActiveEnd; i < n; ++i) {
             if (requestSlotImage(i)) ++mActiveRequestCount;
@@ -286,7 +361,8 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
     }
 
     private class ThumbnailLoader extends BitmapLoader  {
-        private final int mSlotIndex;
+        // Changed when the entry is moved, see onItemsMoved().
+        private int mSlotIndex;
         private final MediaItem mItem;
 
         public ThumbnailLoader(int slotIndex, MediaItem item) {
@@ -297,7 +373,9 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         @Override
         protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l) {
             return mThreadPool.submit(
-                    mItem.requestImage(MediaItem.TYPE_MICROTHUMBNAIL), this);
+                    mItem.requestImage(MediaItem.TYPE_MICROTHUMBNAIL), this,
+                    isActiveSlot(mSlotIndex) ? ThreadPool.PRIORITY_VISIBLE
+                            : ThreadPool.PRIORITY_NEAR_VISIBLE, mSlotIndex);
         }
 
         @Override
@@ -345,12 +423,66 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         }
     }
 
+    // Moves the entries of the items which are still in the album, with their
+    // textures, instead of loading the thumbnails again.
+    @Override
+    public void onItemsMoved(ChangeSet changes) {
+        if (!mIsActive) return;
+        AlbumEntry[] oldData = mData.clone();
+        Arrays.fill(mData, null);
+
+        for (int i = mContentStart, n = mContentEnd; i < n; ++i) {
+            AlbumEntry entry = takeEntry(oldData, changes.getOldIndex(i),
+                    mSource.get(i));
+            if (entry == null) {
+                prepareSlotContent(i);
+                continue;
+            }
+            ThumbnailLoader loader = (ThumbnailLoader) entry.contentLoader;
+            if (loader.mSlotIndex != i) {
+                // The waiting request is tagged with the old index. Cancel
+                // it: updateAllImageRequests() below requests the thumbnail
+                // again, and it is submitted with the new index once the
+                // cancelled task is done (see BitmapLoader.onFutureDone()).
+                // The index is set first, under the lock taken by
+                // cancelLoad(), so the new task sees it.
+                loader.mSlotIndex = i;
+                if (loader.isRequestInProgress()) loader.cancelLoad();
+            }
+            mData[i % mData.length] = entry;
+        }
+
+        for (AlbumEntry entry : oldData) {
+            if (entry == null) continue;
+            if (entry.contentLoader != null) entry.contentLoader.recycle();
+            if (entry.bitmapTexture != null) entry.bitmapTexture.recycle();
+        }
+        updateTextureUploadQueue();
+        updateAllImageRequests();
+        if (mListener != null) mListener.onContentChanged();
+    }
+
+    // Removes and returns the entry of the slot from the entries if it shows
+    // the item, or returns null.
+    private AlbumEntry takeEntry(AlbumEntry[] entries, int slotIndex, MediaItem item) {
+        if (slotIndex < 0 || item == null) return null;
+        int index = slotIndex % entries.length;
+        AlbumEntry entry = entries[index];
+        if (entry == null || entry.item != item
+                || ((ThumbnailLoader) entry.contentLoader).mSlotIndex != slotIndex) {
+            return null;
+        }
+        entries[index] = null;
+        return entry;
+    }
+
     public void resume() {
         mIsActive = true;
         TiledTexture.prepareResources();
         for (int i = mContentStart, n = mContentEnd; i < n; ++i) {
             prepareSlotContent(i);
         }
+        prefetchSlotContent(mContentStart, mContentEnd, 0, 0);
         updateAllImageRequests();
     }
 
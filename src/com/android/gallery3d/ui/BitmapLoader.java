@@ -81,6 +81,12 @@ public abstract class BitmapLoader implements FutureListener<Bitmap> {
         }
     }
 
+    // Like cancelLoad(), but the task is left to the caller, which cancels
+    // the tasks of many loaders at once (see JobLimiter.cancel(int, int)).
+    public synchronized void resetLoad() {
+        if (mState == STATE_REQUESTED) mState = STATE_INIT;
+    }
+
     // Recycle the loader and the bitmap
     public synchronized void recycle() {
         mState = STATE_RECYCLED;
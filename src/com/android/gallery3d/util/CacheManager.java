@@ -21,6 +21,7 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
 import com.android.gallery3d.common.BlobCache;
+import com.android.gallery3d.common.ShardedBlobCache;
 
 import java.io.File;
 import java.io.IOException;
@@ -29,8 +30,13 @@ import java.util.HashMap;
 public class CacheManager {
     private static final String TAG = "CacheManager";
     private static final String KEY_CACHE_UP_TO_DATE = "cache-up-to-date";
+    // Upper bound of the shard count used for "imgcache", so the wiped-data
+    // check can remove all of its shard files.
+    private static final int IMGCACHE_MAX_SHARDS = 16;
     private static HashMap<String, BlobCache> sCacheMap =
             new HashMap<String, BlobCache>();
+    private static HashMap<String, ShardedBlobCache> sShardedCacheMap =
+            new HashMap<String, ShardedBlobCache>();
     private static boolean sOldCheckDone = false;
 
     // Return null when we cannot instantiate a BlobCache, e.g.:
@@ -59,6 +65,46 @@ public class CacheManager {
         }
     }
 
+    // Same as getCache(), but returns a cache split into shardCount shards
+    // which can be used by multiple threads without external locking. If an
+    // unsharded cache with the same filename exists, it is deleted: its keys
+    // and payloads are from older versions of the cache.
+    public static ShardedBlobCache getShardedCache(Context context,
+            String filename, int shardCount, int maxEntries, int maxBytes,
+            int version) {
+        synchronized (sCacheMap) {
+            if (!sOldCheckDone) {
+                removeOldFilesIfNecessary(context);
+                sOldCheckDone = true;
+            }
+            ShardedBlobCache cache = sShardedCacheMap.get(filename);
+            if (cache == null) {
+                File cacheDir = context.getCacheDir();
+                String path = cacheDir.getAbsolutePath() + "/" + filename;
+                try {
+                    cache = new ShardedBlobCache(path, shardCount, maxEntries,
+                            maxBytes, false, version);
+                    BlobCache.deleteFiles(path);
+                    sShardedCacheMap.put(filename, cache);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot instantiate cache!", e);
+                }
+            }
+            return cache;
+        }
+    }
+
+    // Returns the counters of the cache previously opened with the given
+    // filename by getCache() or getShardedCache(), or null if there is none.
+    public static BlobCache.Stats getCacheStats(String filename) {
+        synchronized (sCacheMap) {
+            ShardedBlobCache sharded = sShardedCacheMap.get(filename);
+            if (sharded != null) return sharded.getStats();
+            BlobCache cache = sCacheMap.get(filename);
+            return (cache == null) ? null : cache.getStats();
+        }
+    }
+
     // Removes the old files if the data is wiped.
     private static void removeOldFilesIfNecessary(Context context) {
         SharedPreferences pref = PreferenceManager
@@ -76,7 +122,9 @@ public class CacheManager {
         String prefix = cacheDir.getAbsolutePath() + "/";
 
         BlobCache.deleteFiles(prefix + "imgcache");
+        ShardedBlobCache.deleteFiles(prefix + "imgcache", IMGCACHE_MAX_SHARDS);
         BlobCache.deleteFiles(prefix + "rev_geocoding");
         BlobCache.deleteFiles(prefix + "bookmark");
+        BlobCache.deleteFiles(prefix + "local_index");
     }
 }
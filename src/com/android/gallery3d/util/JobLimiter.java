@@ -20,13 +20,26 @@ import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
-import java.util.LinkedList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 // Limit the number of concurrent jobs that has been submitted into a ThreadPool
+//
+// No lock is held across the jobs: the waiting jobs are kept in concurrent
+// skip lists and the free slots in an atomic counter. A job can be given a
+// tag (e.g. the index of the slot it loads), and the jobs can then be
+// cancelled or reprioritized by range of tags, without walking all of them.
 @SuppressWarnings("rawtypes")
 public class JobLimiter implements FutureListener {
     private static final String TAG = "JobLimiter";
 
+    // The tag of the jobs which cannot be selected by range.
+    public static final int NO_TAG = Integer.MIN_VALUE;
+
     // State Transition:
     //      INIT -> DONE, CANCELLED
     //      DONE -> CANCELLED
@@ -34,20 +47,63 @@ public class JobLimiter implements FutureListener {
     private static final int STATE_DONE = 1;
     private static final int STATE_CANCELLED = 2;
 
-    private final LinkedList<JobWrapper<?>> mJobs = new LinkedList<JobWrapper<?>>();
+    private static final Comparator<JobWrapper<?>> sPriorityComparator =
+            new Comparator<JobWrapper<?>>() {
+        @Override
+        public int compare(JobWrapper<?> a, JobWrapper<?> b) {
+            if (a.mPriority != b.mPriority) {
+                return a.mPriority < b.mPriority ? -1 : 1;
+            }
+            return a.mSequence < b.mSequence ? -1
+                    : (a.mSequence == b.mSequence ? 0 : 1);
+        }
+    };
+
+    // The jobs not submitted to the pool yet, in the order they will be.
+    private final ConcurrentSkipListSet<JobWrapper<?>> mJobs =
+            new ConcurrentSkipListSet<JobWrapper<?>>(sPriorityComparator);
+    // The jobs with a tag, until they are done or cancelled. The key is the
+    // tag in the high 32 bits and the sequence number in the low 32 bits.
+    private final ConcurrentSkipListMap<Long, JobWrapper<?>> mTaggedJobs =
+            new ConcurrentSkipListMap<Long, JobWrapper<?>>();
     private final ThreadPool mPool;
-    private int mLimit;
+    private final AtomicLong mSequence = new AtomicLong();
+    // The number of jobs which can still be submitted to the pool. It is
+    // negative after the limit is lowered below the number of running jobs.
+    private final AtomicInteger mLimit;
+    private volatile int mMaxLimit;
 
-    private static class JobWrapper<T> implements Future<T>, Job<T> {
+    private class JobWrapper<T> implements Future<T>, Job<T> {
         private int mState = STATE_INIT;
         private Job<T> mJob;
         private Future<T> mDelegate;
         private FutureListener<T> mListener;
         private T mResult;
+        // Only changed while the job is not in mJobs.
+        private volatile int mPriority;
+        private final long mSequence;
+        private final int mTag;
+        // For the JobMetrics of the pool, if enabled when the job was
+        // submitted.
+        private final JobMetrics mMetrics;
+        private final Class<?> mJobClass;
+        private final long mSubmitTime;
 
-        public JobWrapper(Job<T> job, FutureListener<T> listener) {
+        public JobWrapper(Job<T> job, FutureListener<T> listener, int priority,
+                long sequence, int tag) {
             mJob = job;
             mListener = listener;
+            mPriority = priority;
+            mSequence = sequence;
+            mTag = tag;
+            mMetrics = mPool.getMetrics();
+            mJobClass = job.getClass();
+            mSubmitTime = System.nanoTime();
+            if (mMetrics != null) mMetrics.onSubmit(mJobClass);
+        }
+
+        long getTagKey() {
+            return ((long) mTag << 32) | (mSequence & 0xffffffffL);
         }
 
         public synchronized void setFuture(Future<T> future) {
@@ -59,6 +115,11 @@ public class JobLimiter implements FutureListener {
         public void cancel() {
             FutureListener<T> listener = null;
             synchronized (this) {
+                if (mState == STATE_INIT && mDelegate == null
+                        && mMetrics != null) {
+                    // Still in our queue, the pool never saw it.
+                    mMetrics.onCancel(mJobClass, false);
+                }
                 if (mState != STATE_DONE) {
                     listener = mListener;
                     mJob = null;
@@ -72,6 +133,8 @@ public class JobLimiter implements FutureListener {
                 mResult = null;
                 notifyAll();
             }
+            mJobs.remove(this);
+            removeTag(this);
             if (listener != null) listener.onFutureDone(this);
         }
 
@@ -123,6 +186,7 @@ public class JobLimiter implements FutureListener {
                 mResult = result;
                 notifyAll();
             }
+            removeTag(this);
             if (listener != null) listener.onFutureDone(this);
             return result;
         }
@@ -130,30 +194,100 @@ public class JobLimiter implements FutureListener {
 
     public JobLimiter(ThreadPool pool, int limit) {
         mPool = Utils.checkNotNull(pool);
-        mLimit = limit;
+        mLimit = new AtomicInteger(limit);
+        mMaxLimit = limit;
+    }
+
+    // Changes the number of jobs which can run at the same time. The jobs
+    // already running are not affected.
+    public synchronized void setLimit(int limit) {
+        mLimit.addAndGet(limit - mMaxLimit);
+        mMaxLimit = limit;
+        submitTasksIfAllowed();
+    }
+
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
+        return submit(job, listener, ThreadPool.PRIORITY_VISIBLE, NO_TAG);
+    }
+
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener,
+            int priority) {
+        return submit(job, listener, priority, NO_TAG);
     }
 
-    public synchronized <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
-        JobWrapper<T> future = new JobWrapper<T>(Utils.checkNotNull(job), listener);
-        mJobs.addLast(future);
+    // The waiting jobs are submitted in priority order (see
+    // ThreadPool.PRIORITY_*), and the priority is passed on to the pool.
+    // The tag selects the job in cancel(int, int) and setPriority().
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener,
+            int priority, int tag) {
+        JobWrapper<T> future = new JobWrapper<T>(Utils.checkNotNull(job),
+                listener, priority, mSequence.getAndIncrement(), tag);
+        if (tag != NO_TAG) mTaggedJobs.put(future.getTagKey(), future);
+        mJobs.add(future);
         submitTasksIfAllowed();
         return future;
     }
 
+    // Cancels the jobs with a tag in [fromTag, toTag), whether they are
+    // waiting or running. Returns the number of jobs cancelled.
+    public int cancel(int fromTag, int toTag) {
+        int count = 0;
+        Iterator<JobWrapper<?>> it = getTaggedJobs(fromTag, toTag);
+        while (it.hasNext()) {
+            it.next().cancel();
+            ++count;
+        }
+        return count;
+    }
+
+    // Changes the priority of the jobs with a tag in [fromTag, toTag) which
+    // are still waiting, e.g. when they come into view.
+    public void setPriority(int fromTag, int toTag, int priority) {
+        Iterator<JobWrapper<?>> it = getTaggedJobs(fromTag, toTag);
+        while (it.hasNext()) {
+            JobWrapper<?> job = it.next();
+            if (job.mPriority == priority) continue;
+            // If the job is not in mJobs, it has been submitted already.
+            if (mJobs.remove(job)) {
+                job.mPriority = priority;
+                mJobs.add(job);
+            }
+        }
+        submitTasksIfAllowed();
+    }
+
+    private Iterator<JobWrapper<?>> getTaggedJobs(int fromTag, int toTag) {
+        return mTaggedJobs.subMap((long) fromTag << 32, true,
+                (long) toTag << 32, false).values().iterator();
+    }
+
+    private void removeTag(JobWrapper<?> job) {
+        if (job.mTag != NO_TAG) mTaggedJobs.remove(job.getTagKey(), job);
+    }
+
     @SuppressWarnings({"rawtypes", "unchecked"})
     private void submitTasksIfAllowed() {
-        while (mLimit > 0 && !mJobs.isEmpty()) {
-            JobWrapper wrapper = mJobs.removeFirst();
-            if (!wrapper.isCancelled()) {
-                --mLimit;
-                wrapper.setFuture(mPool.submit(wrapper, this));
+        while (!mJobs.isEmpty()) {
+            int limit = mLimit.get();
+            if (limit <= 0) return;
+            if (!mLimit.compareAndSet(limit, limit - 1)) continue;
+
+            JobWrapper wrapper = mJobs.pollFirst();
+            if (wrapper == null || wrapper.isCancelled()) {
+                // Give the slot back, and check again for a job added by a
+                // thread which saw no free slot.
+                mLimit.incrementAndGet();
+                if (wrapper != null) removeTag(wrapper);
+                continue;
             }
+            wrapper.setFuture(mPool.submit(wrapper, this, wrapper.mPriority,
+                    ThreadPool.MODE_CPU, wrapper.mJobClass, wrapper.mSubmitTime));
         }
     }
 
     @Override
-    public synchronized void onFutureDone(Future future) {
-        ++mLimit;
+    public void onFutureDone(Future future) {
+        mLimit.incrementAndGet();
         submitTasksIfAllowed();
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.util;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counters about the jobs run by a ThreadPool (including the jobs queued in
+ * a JobLimiter in front of it), grouped by the class of the job.
+ * See ThreadPool.setMetricsEnabled().
+ */
+public class JobMetrics {
+    private static final int LATENCY_BUCKETS = 16;
+
+    public static class Entry {
+        public long submitted;
+        public long started;
+        public long completed;
+        public long cancelledInQueue;
+        public long cancelledWhileRunning;
+        // waitHistogram[i] is the number of jobs which waited in the queue
+        // for less than 2^(i+1) milliseconds (and at least 2^i for i > 0).
+        // The last bucket also counts all the longer waits. The same goes
+        // for runHistogram, with the time between start and completion.
+        public final long[] waitHistogram = new long[LATENCY_BUCKETS];
+        public final long[] runHistogram = new long[LATENCY_BUCKETS];
+
+        private void add(Entry other) {
+            submitted += other.submitted;
+            started += other.started;
+            completed += other.completed;
+            cancelledInQueue += other.cancelledInQueue;
+            cancelledWhileRunning += other.cancelledWhileRunning;
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                waitHistogram[i] += other.waitHistogram[i];
+                runHistogram[i] += other.runHistogram[i];
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("submitted=").append(submitted)
+                    .append(" started=").append(started)
+                    .append(" completed=").append(completed)
+                    .append(" cancelledInQueue=").append(cancelledInQueue)
+                    .append(" cancelledWhileRunning=").append(cancelledWhileRunning)
+                    .append(" wait(ms)=");
+            appendHistogram(sb, waitHistogram);
+            sb.append(" run(ms)=");
+            appendHistogram(sb, runHistogram);
+            return sb.toString();
+        }
+
+        private static void appendHistogram(StringBuilder sb, long[] histogram) {
+            sb.append('[');
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                if (i > 0) sb.append(' ');
+                sb.append("<").append(1 << (i + 1)).append(':')
+                        .append(histogram[i]);
+            }
+            sb.append(']');
+        }
+    }
+
+    private final HashMap<Class<?>, Entry> mEntries = new HashMap<Class<?>, Entry>();
+
+    private Entry getEntry(Class<?> jobClass) {
+        Entry entry = mEntries.get(jobClass);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(jobClass, entry);
+        }
+        return entry;
+    }
+
+    synchronized void onSubmit(Class<?> jobClass) {
+        getEntry(jobClass).submitted++;
+    }
+
+    synchronized void onStart(Class<?> jobClass, long waitNanos) {
+        Entry entry = getEntry(jobClass);
+        entry.started++;
+        entry.waitHistogram[getBucket(waitNanos)]++;
+    }
+
+    synchronized void onComplete(Class<?> jobClass, long runNanos) {
+        Entry entry = getEntry(jobClass);
+        entry.completed++;
+        entry.runHistogram[getBucket(runNanos)]++;
+    }
+
+    synchronized void onCancel(Class<?> jobClass, boolean started) {
+        Entry entry = getEntry(jobClass);
+        if (started) {
+            entry.cancelledWhileRunning++;
+        } else {
+            entry.cancelledInQueue++;
+        }
+    }
+
+    private static int getBucket(long nanos) {
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (millis > 1 && bucket < LATENCY_BUCKETS - 1) {
+            millis >>= 1;
+            ++bucket;
+        }
+        return bucket;
+    }
+
+    /**
+     * Returns a copy of the counters, keyed by the name of the job class and
+     * sorted by name.
+     */
+    public synchronized Map<String, Entry> getEntries() {
+        TreeMap<String, Entry> result = new TreeMap<String, Entry>();
+        for (Map.Entry<Class<?>, Entry> e : mEntries.entrySet()) {
+            Entry copy = new Entry();
+            copy.add(e.getValue());
+            result.put(e.getKey().getName(), copy);
+        }
+        return result;
+    }
+
+    public synchronized void reset() {
+        mEntries.clear();
+    }
+
+    /**
+     * Writes the counters, one line per job class.
+     */
+    public void dump(PrintWriter writer) {
+        for (Map.Entry<String, Entry> e : getEntries().entrySet()) {
+            writer.print(e.getKey());
+            writer.print(": ");
+            writer.println(e.getValue());
+        }
+        writer.flush();
+    }
+}
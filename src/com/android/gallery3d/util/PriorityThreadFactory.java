@@ -18,13 +18,18 @@ package com.android.gallery3d.util;
 
 import android.os.Process;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A thread factory that creates threads with a given thread priority.
+ * A thread factory that creates threads with a given thread priority. It can
+ * also create the worker threads of a ForkJoinPool.
  */
-public class PriorityThreadFactory implements ThreadFactory {
+public class PriorityThreadFactory implements ThreadFactory,
+        ForkJoinWorkerThreadFactory {
 
     private final int mPriority;
     private final AtomicInteger mNumber = new AtomicInteger();
@@ -46,4 +51,17 @@ public class PriorityThreadFactory implements ThreadFactory {
         };
     }
 
+    @Override
+    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+            @Override
+            protected void onStart() {
+                super.onStart();
+                Process.setThreadPriority(mPriority);
+            }
+        };
+        thread.setName(mName + '-' + mNumber.getAndIncrement());
+        return thread;
+    }
+
 }
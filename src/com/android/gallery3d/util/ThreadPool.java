@@ -19,9 +19,11 @@ package com.android.gallery3d.util;
 import android.util.Log;
 
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThreadPool {
     @SuppressWarnings("unused")
@@ -29,16 +31,34 @@ public class ThreadPool {
     private static final int CORE_POOL_SIZE = 4;
     private static final int MAX_POOL_SIZE = 8;
     private static final int KEEP_ALIVE_TIME = 10; // 10 seconds
+    // The number of MODE_CPU jobs which can run at the same time.
+    private static final int CPU_JOB_LIMIT = 2;
+    private static final int NETWORK_JOB_LIMIT = 2;
+    private static final int DISK_JOB_LIMIT = 2;
 
     // Resource type
     public static final int MODE_NONE = 0;
     public static final int MODE_CPU = 1;
     public static final int MODE_NETWORK = 2;
+    // For local file and database access, which may be slow on SD cards.
+    public static final int MODE_DISK = 3;
+
+    // Job priority. Queued jobs with a lower value are started first, jobs
+    // with the same priority are started in submission order.
+    // For the content currently on screen.
+    public static final int PRIORITY_VISIBLE = 0;
+    // For the content which is likely to be on screen soon.
+    public static final int PRIORITY_NEAR_VISIBLE = 1;
+    // For loading data ahead of time which may never be used.
+    public static final int PRIORITY_PREFETCH = 2;
+    // For maintenance work nobody is waiting for.
+    public static final int PRIORITY_BACKGROUND = 3;
 
     public static final JobContext JOB_CONTEXT_STUB = new JobContextStub();
 
-    ResourceCounter mCpuCounter = new ResourceCounter(2);
-    ResourceCounter mNetworkCounter = new ResourceCounter(2);
+    final ResourceCounter mCpuCounter;
+    final ResourceCounter mNetworkCounter = new ResourceCounter(NETWORK_JOB_LIMIT);
+    final ResourceCounter mDiskCounter = new ResourceCounter(DISK_JOB_LIMIT);
 
     // A Job is like a Callable, but it has an addition JobContext parameter.
     public interface Job<T> {
@@ -79,32 +99,115 @@ public class ThreadPool {
     }
 
     private final Executor mExecutor;
+    // Runs the jobs submitted in MODE_DISK, if set. See enableDiskPool().
+    private volatile Executor mDiskExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    private volatile JobMetrics mMetrics;
 
     public ThreadPool() {
         this(CORE_POOL_SIZE, MAX_POOL_SIZE);
     }
 
     public ThreadPool(int initPoolSize, int maxPoolSize) {
-        mExecutor = new ThreadPoolExecutor(
+        this(new ThreadPoolExecutor(
                 initPoolSize, maxPoolSize, KEEP_ALIVE_TIME,
-                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
                 new PriorityThreadFactory("thread-pool",
+                android.os.Process.THREAD_PRIORITY_BACKGROUND)), CPU_JOB_LIMIT);
+    }
+
+    private ThreadPool(Executor executor, int cpuJobLimit) {
+        mExecutor = executor;
+        mCpuCounter = new ResourceCounter(cpuJobLimit);
+    }
+
+    // Creates a thread pool backed by a work-stealing ForkJoinPool with the
+    // given number of threads. The number of MODE_CPU jobs running at the
+    // same time is half of that, keeping some cores for the UI. The caller
+    // picks the size: availableProcessors() only counts the cores online at
+    // the moment, which is often one or two on a phone at rest.
+    //
+    // A job waiting in setMode() keeps its thread, so the pool never has
+    // more than the given number of threads. The priorities are ignored:
+    // there is no global queue to sort. Cancelled jobs stay queued
+    // until a thread gets to them, and then finish without running.
+    //
+    // This is opt-in, for batch work which doesn't depend on the priorities.
+    // The main pool of the app stays a ThreadPool(), which runs the visible
+    // jobs first and drops the cancelled ones from its queue.
+    public static ThreadPool newWorkStealingPool(int parallelism) {
+        ForkJoinPool executor = new ForkJoinPool(parallelism,
+                new PriorityThreadFactory("work-stealing-pool",
+                android.os.Process.THREAD_PRIORITY_BACKGROUND), null, true);
+        return new ThreadPool(executor, Math.max(CPU_JOB_LIMIT, parallelism / 2));
+    }
+
+    // Runs the jobs submitted in MODE_DISK on poolSize threads of their own,
+    // so jobs waiting for a slow disk don't hold the threads of the CPU jobs.
+    public synchronized void enableDiskPool(int poolSize) {
+        if (mDiskExecutor != null) return;
+        mDiskExecutor = new ThreadPoolExecutor(
+                poolSize, poolSize, KEEP_ALIVE_TIME,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new PriorityThreadFactory("disk-pool",
                 android.os.Process.THREAD_PRIORITY_BACKGROUND));
     }
 
+    // Starts or stops collecting the JobMetrics of the jobs submitted from
+    // now on. The counters are reset either way.
+    public void setMetricsEnabled(boolean enabled) {
+        mMetrics = enabled ? new JobMetrics() : null;
+    }
+
+    // Returns the JobMetrics, or null if they are not enabled.
+    public JobMetrics getMetrics() {
+        return mMetrics;
+    }
+
     // Submit a job to the thread pool. The listener will be called when the
-    // job is finished (or cancelled).
-    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
-        Worker<T> w = new Worker<T>(job, listener);
-        mExecutor.execute(w);
+    // job is finished (or cancelled). A job cancelled before it is started is
+    // removed from the queue right away.
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener,
+            int priority) {
+        return submit(job, listener, priority, MODE_CPU);
+    }
+
+    // Like submit(Job, FutureListener, int), but the job starts in the given
+    // mode instead of MODE_CPU. A MODE_DISK job runs in the disk pool if it
+    // is enabled.
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener,
+            int priority, int mode) {
+        JobMetrics metrics = mMetrics;
+        if (metrics != null) metrics.onSubmit(job.getClass());
+        return submit(job, listener, priority, mode, job.getClass(),
+                System.nanoTime());
+    }
+
+    // Used by JobLimiter, which counts the submission of its jobs itself:
+    // the metrics are recorded for jobClass, and the wait in the queue is
+    // measured from submitTime.
+    <T> Future<T> submit(Job<T> job, FutureListener<T> listener, int priority,
+            int mode, Class<?> jobClass, long submitTime) {
+        Executor diskExecutor = mDiskExecutor;
+        Executor executor = (mode == MODE_DISK && diskExecutor != null)
+                ? diskExecutor : mExecutor;
+        Worker<T> w = new Worker<T>(job, listener, priority,
+                mSequence.getAndIncrement(), mode, executor, jobClass,
+                submitTime);
+        executor.execute(w);
         return w;
     }
 
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
+        return submit(job, listener, PRIORITY_VISIBLE);
+    }
+
     public <T> Future<T> submit(Job<T> job) {
         return submit(job, null);
     }
 
-    private class Worker<T> implements Runnable, Future<T>, JobContext {
+    private class Worker<T> implements Runnable, Future<T>, JobContext,
+            Comparable<Worker<?>> {
         @SuppressWarnings("hiding")
         private static final String TAG = "Worker";
         private Job<T> mJob;
@@ -112,29 +215,68 @@ public class ThreadPool {
         private CancelListener mCancelListener;
         private ResourceCounter mWaitOnResource;
         private volatile boolean mIsCancelled;
+        private boolean mIsStarted;
         private boolean mIsDone;
         private T mResult;
         private int mMode;
-
-        public Worker(Job<T> job, FutureListener<T> listener) {
+        private final int mPriority;
+        private final long mSequence;
+        private final int mInitialMode;
+        private final Executor mQueue;
+        private final JobMetrics mMetrics;
+        private final Class<?> mJobClass;
+        private final long mSubmitTime;
+
+        public Worker(Job<T> job, FutureListener<T> listener, int priority,
+                long sequence, int initialMode, Executor queue,
+                Class<?> jobClass, long submitTime) {
             mJob = job;
             mListener = listener;
+            mPriority = priority;
+            mSequence = sequence;
+            mInitialMode = initialMode;
+            mQueue = queue;
+            mMetrics = ThreadPool.this.mMetrics;
+            mJobClass = jobClass;
+            mSubmitTime = submitTime;
+        }
+
+        // Used by the queue of the executor.
+        @Override
+        public int compareTo(Worker<?> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1
+                    : (mSequence == other.mSequence ? 0 : 1);
         }
 
         // This is called by a thread in the thread pool.
         @Override
         public void run() {
+            boolean cancelledInQueue;
+            synchronized (this) {
+                mIsStarted = true;
+                cancelledInQueue = mIsCancelled;
+            }
+            // A job cancelled in the queue has been counted already.
+            JobMetrics metrics = cancelledInQueue ? null : mMetrics;
+            long startTime = System.nanoTime();
+            if (metrics != null) metrics.onStart(mJobClass, startTime - mSubmitTime);
             T result = null;
 
-            // A job is in CPU mode by default. setMode returns false
-            // if the job is cancelled.
-            if (setMode(MODE_CPU)) {
+            // A job starts in the mode it was submitted with, MODE_CPU by
+            // default. setMode returns false if the job is cancelled.
+            if (setMode(mInitialMode)) {
                 try {
                     result = mJob.run(this);
                 } catch (Throwable ex) {
                     Log.w(TAG, "Exception in running a job", ex);
                 }
             }
+            if (metrics != null) {
+                metrics.onComplete(mJobClass, System.nanoTime() - startTime);
+            }
 
             synchronized(this) {
                 setMode(MODE_NONE);
@@ -147,17 +289,34 @@ public class ThreadPool {
 
         // Below are the methods for Future.
         @Override
-        public synchronized void cancel() {
-            if (mIsCancelled) return;
-            mIsCancelled = true;
-            if (mWaitOnResource != null) {
-                synchronized (mWaitOnResource) {
-                    mWaitOnResource.notifyAll();
+        public void cancel() {
+            synchronized (this) {
+                if (mIsCancelled) return;
+                mIsCancelled = true;
+                if (mMetrics != null) mMetrics.onCancel(mJobClass, mIsStarted);
+                if (mWaitOnResource != null) {
+                    synchronized (mWaitOnResource) {
+                        mWaitOnResource.notifyAll();
+                    }
+                }
+                if (mCancelListener != null) {
+                    mCancelListener.onCancel();
                 }
+                if (mIsStarted) return;
             }
-            if (mCancelListener != null) {
-                mCancelListener.onCancel();
+
+            // The job has not been started: take it out of the queue, so the
+            // workers don't spend any time on it. If it is already gone, a
+            // thread is about to run it and will see it is cancelled.
+            if (!(mQueue instanceof ThreadPoolExecutor)
+                    || !((ThreadPoolExecutor) mQueue).remove(this)) {
+                return;
             }
+            synchronized (this) {
+                mIsDone = true;
+                notifyAll();
+            }
+            if (mListener != null) mListener.onFutureDone(this);
         }
 
         @Override
@@ -222,11 +381,16 @@ public class ThreadPool {
                 return mCpuCounter;
             } else if (mode == MODE_NETWORK) {
                 return mNetworkCounter;
+            } else if (mode == MODE_DISK) {
+                return mDiskCounter;
             } else {
                 return null;
             }
         }
 
+        // Waits without ForkJoinPool.managedBlock(): it would start a
+        // compensating thread for each job waiting for a CPU slot, and the
+        // work-stealing pool would grow with the queue.
         private boolean acquireResource(ResourceCounter counter) {
             while (true) {
                 synchronized (this) {
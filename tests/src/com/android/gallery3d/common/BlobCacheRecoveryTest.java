@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.common;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+// Tests that a BlobCache opened in recovery mode rebuilds a damaged index
+// from the intact blobs of its data files, and only from those.
+public class BlobCacheRecoveryTest extends AndroidTestCase {
+    private static final String TAG = "BlobCacheRecoveryTest";
+
+    private static final int MAX_ENTRIES = 100;
+    private static final int MAX_BYTES = 1000;
+    private static final int VERSION = 1;
+    // The layout of the files, see the comment at the top of BlobCache.
+    private static final int INDEX_CHECKSUM_OFFSET = 32;
+    private static final int DATA_HEADER_SIZE = 4;
+    private static final int BLOB_HEADER_SIZE = 20;
+    // A blob of this size takes 120 bytes with its header, so a region of
+    // MAX_BYTES holds 8 of them.
+    private static final int BLOB_SIZE = 100;
+    // Does not fit in a region after three blobs of BLOB_SIZE.
+    private static final int LARGE_BLOB_SIZE = 700;
+
+    private String mPath;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPath = new File(getContext().getCacheDir(), TAG).getAbsolutePath();
+        BlobCache.deleteFiles(mPath);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        BlobCache.deleteFiles(mPath);
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testSalvageAfterIndexDamaged() throws IOException {
+        BlobCache bc = openCache(false);
+        for (int i = 1; i <= 3; i++) bc.insert(i, makeBlob(i));
+        bc.close();
+
+        damageIndex();
+        bc = openCache(true);
+        for (int i = 1; i <= 3; i++) assertSameBlob(i, bc.lookup(i));
+        bc.close();
+    }
+
+    @SmallTest
+    public void testNoSalvageWithoutRecover() throws IOException {
+        BlobCache bc = openCache(false);
+        bc.insert(1, makeBlob(1));
+        bc.close();
+
+        damageIndex();
+        bc = openCache(false);
+        assertNull(bc.lookup(1));
+        bc.close();
+    }
+
+    @SmallTest
+    public void testNoSalvageOfOtherVersion() throws IOException {
+        BlobCache bc = openCache(false);
+        bc.insert(1, makeBlob(1));
+        bc.close();
+
+        damageIndex();
+        bc = new BlobCache(mPath, MAX_ENTRIES, MAX_BYTES, false, VERSION + 1, true);
+        assertNull(bc.lookup(1));
+        bc.close();
+    }
+
+    @SmallTest
+    public void testSalvageStopsAtTornBlob() throws IOException {
+        BlobCache bc = openCache(false);
+        for (int i = 1; i <= 3; i++) bc.insert(i, makeBlob(i));
+        bc.close();
+
+        // Cut the last blob short, as if the device died while writing it.
+        RandomAccessFile file = new RandomAccessFile(mPath + ".0", "rw");
+        try {
+            file.setLength(file.length() - BLOB_SIZE / 2);
+        } finally {
+            file.close();
+        }
+        damageIndex();
+
+        bc = openCache(true);
+        assertSameBlob(1, bc.lookup(1));
+        assertSameBlob(2, bc.lookup(2));
+        assertNull(bc.lookup(3));
+        // New blobs go after the last intact one.
+        bc.insert(4, makeBlob(4));
+        assertSameBlob(4, bc.lookup(4));
+        bc.close();
+    }
+
+    @SmallTest
+    public void testSalvageStopsAtCorruptedBlob() throws IOException {
+        BlobCache bc = openCache(false);
+        for (int i = 1; i <= 3; i++) bc.insert(i, makeBlob(i));
+        bc.close();
+
+        // Flip a byte in the data of the second blob.
+        RandomAccessFile file = new RandomAccessFile(mPath + ".0", "rw");
+        try {
+            long offset = DATA_HEADER_SIZE + (BLOB_HEADER_SIZE + BLOB_SIZE)
+                    + BLOB_HEADER_SIZE;
+            file.seek(offset);
+            int b = file.read();
+            file.seek(offset);
+            file.write(~b);
+        } finally {
+            file.close();
+        }
+        damageIndex();
+
+        bc = openCache(true);
+        assertSameBlob(1, bc.lookup(1));
+        assertNull(bc.lookup(2));
+        assertNull(bc.lookup(3));
+        bc.close();
+    }
+
+    @SmallTest
+    public void testSalvageSkipsClearedEntry() throws IOException {
+        BlobCache bc = openCache(false);
+        for (int i = 1; i <= 3; i++) bc.insert(i, makeBlob(i));
+        bc.clearEntry(2);
+        bc.close();
+
+        damageIndex();
+        bc = openCache(true);
+        assertSameBlob(1, bc.lookup(1));
+        assertNull(bc.lookup(2));
+        assertSameBlob(3, bc.lookup(3));
+        bc.close();
+    }
+
+    @SmallTest
+    public void testSalvageIgnoresStaleActiveTail() throws IOException {
+        BlobCache bc = openCache(false);
+        for (int i = 1; i <= 3; i++) bc.insert(i, makeBlob(i));
+        bc.close();
+
+        // An intact blob past the recorded end of the region, as left by a
+        // flip which could not truncate the file.
+        appendBlob(mPath + ".0", 100);
+        damageIndex();
+
+        bc = openCache(true);
+        for (int i = 1; i <= 3; i++) assertSameBlob(i, bc.lookup(i));
+        assertNull(bc.lookup(100));
+        bc.close();
+    }
+
+    @SmallTest
+    public void testSalvageIgnoresStaleInactiveTail() throws IOException {
+        // Three blobs in region 0, then a large one which flips to region 1.
+        BlobCache bc = openCache(false);
+        for (int i = 1; i <= 3; i++) bc.insert(i, makeBlob(i));
+        bc.insert(4, makeBlob(4, LARGE_BLOB_SIZE));
+        bc.close();
+
+        appendBlob(mPath + ".0", 100);
+        damageIndex();
+
+        bc = openCache(true);
+        assertNull(bc.lookup(100));
+        assertTrue(Arrays.equals(makeBlob(4, LARGE_BLOB_SIZE), bc.lookup(4)));
+        // A lookup in region 0 copies the blob forward: copying a third one
+        // would flip the regions again.
+        assertSameBlob(1, bc.lookup(1));
+        assertSameBlob(2, bc.lookup(2));
+        bc.close();
+    }
+
+    private BlobCache openCache(boolean recover) throws IOException {
+        return new BlobCache(mPath, MAX_ENTRIES, MAX_BYTES, false, VERSION, recover);
+    }
+
+    // Breaks the checksum of the index header, so the index is not loaded.
+    private void damageIndex() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mPath + ".idx", "rw");
+        try {
+            file.seek(INDEX_CHECKSUM_OFFSET);
+            int sum = file.readInt();
+            file.seek(INDEX_CHECKSUM_OFFSET);
+            file.writeInt(~sum);
+        } finally {
+            file.close();
+        }
+    }
+
+    // Appends a well-formed blob with the given key to the data file.
+    private void appendBlob(String path, long key) throws IOException {
+        byte[] data = makeBlob((int) key);
+        Adler32 adler32 = new Adler32();
+        adler32.update(data);
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            int offset = (int) file.length();
+            ByteBuffer header = ByteBuffer.allocate(BLOB_HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(key);
+            header.putInt((int) adler32.getValue());
+            header.putInt(offset);
+            header.putInt(data.length);
+            file.seek(offset);
+            file.write(header.array());
+            file.write(data);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static byte[] makeBlob(int seed) {
+        return makeBlob(seed, BLOB_SIZE);
+    }
+
+    private static byte[] makeBlob(int seed, int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) seed);
+        return data;
+    }
+
+    private static void assertSameBlob(int seed, byte[] data) {
+        assertNotNull(data);
+        assertTrue(Arrays.equals(makeBlob(seed), data));
+    }
+}